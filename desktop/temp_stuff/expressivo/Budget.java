@@ -0,0 +1,140 @@
+package expressivo;
+
+import java.time.Duration;
+
+/**
+ * Limits on the work one differentiate or simplify may do: how many nodes it may create, how many nodes
+ * it may visit, and by when it must finish. The computation checks its budget as it walks the expression
+ * and gives up with a BudgetExceededException as soon as a limit is passed or the budget is cancelled.
+ *
+ * <p>A budget is used up by the computations it is passed to; give each independent computation its own.
+ */
+public final class Budget
+{
+    //Abstract Function
+    // Maps (maxNodes, maxSteps, deadline, cancelled) to the set of computations allowed to create at most
+    // maxNodes nodes and visit at most maxSteps nodes before System.nanoTime() reaches deadline, unless
+    // cancelled. nodes, steps and start record what has been used so far.
+    //Representation Invariant
+    // maxNodes, maxSteps >= 0. nodes and steps never decrease.
+    //Safety from Rep Exposure
+    // All fields are primitives.
+    //Thread Safety
+    // The counters belong to the one thread doing the computation. cancelled is volatile so that any
+    // other thread may cancel.
+    private static final int CLOCK_INTERVAL=256;
+
+    private final long maxNodes;
+    private final long maxSteps;
+    private final long start;
+    private final long deadline;
+    private final boolean hasDeadline;
+    private volatile boolean cancelled=false;
+    private long nodes=0;
+    private long steps=0;
+
+    private void checkRep(){
+        assert maxNodes>=0 && maxSteps>=0;
+    }
+
+    /**
+     * @param maxNodes the most nodes the computation may create, >= 0.
+     * @param maxSteps the most nodes the computation may visit, >= 0.
+     * @param timeLimit how long the computation may run from now, or null for no limit.
+     */
+    public Budget(long maxNodes,long maxSteps,Duration timeLimit)
+    {
+        if (maxNodes<0 || maxSteps<0)
+        {
+            throw new IllegalArgumentException("limits must be non-negative");
+        }
+        this.maxNodes=maxNodes;
+        this.maxSteps=maxSteps;
+        this.start=System.nanoTime();
+        this.hasDeadline=timeLimit!=null;
+        this.deadline=hasDeadline ? start+timeLimit.toNanos() : 0;
+        checkRep();
+    }
+
+    /**
+     * @return a budget without limits. It can still be cancelled.
+     */
+    public static Budget unlimited()
+    {
+        return new Budget(Long.MAX_VALUE, Long.MAX_VALUE, null);
+    }
+
+    /**
+     * Asks the computations using this budget to stop. They throw BudgetExceededException the next time
+     * they check it. May be called from any thread.
+     */
+    public void cancel()
+    {
+        cancelled=true;
+    }
+
+    /**
+     * @return true if cancel() has been called.
+     */
+    public boolean isCancelled()
+    {
+        return cancelled;
+    }
+
+    /**
+     * @return the number of nodes created so far.
+     */
+    public long getNodes()
+    {
+        return nodes;
+    }
+
+    /**
+     * @return the number of nodes visited so far.
+     */
+    public long getSteps()
+    {
+        return steps;
+    }
+
+    /**
+     * Records that a node is being visited.
+     * @throws BudgetExceededException if that is one step too many, the deadline has passed or the budget
+     *         was cancelled.
+     */
+    void step()
+    {
+        steps++;
+        if (steps>maxSteps)
+        {
+            throw exceeded(BudgetExceededException.Reason.STEPS);
+        }
+        if (cancelled)
+        {
+            throw exceeded(BudgetExceededException.Reason.CANCELLED);
+        }
+        if (hasDeadline && steps%CLOCK_INTERVAL==0 && System.nanoTime()-deadline>0)
+        {
+            throw exceeded(BudgetExceededException.Reason.DEADLINE);
+        }
+    }
+
+    /**
+     * Records that count nodes are being created.
+     * @param count the number of new nodes.
+     * @throws BudgetExceededException if that is more nodes than allowed.
+     */
+    void allocate(int count)
+    {
+        nodes+=count;
+        if (nodes>maxNodes)
+        {
+            throw exceeded(BudgetExceededException.Reason.NODES);
+        }
+    }
+
+    private BudgetExceededException exceeded(BudgetExceededException.Reason reason)
+    {
+        return new BudgetExceededException(reason, nodes, steps, Duration.ofNanos(System.nanoTime()-start));
+    }
+}
@@ -0,0 +1,66 @@
+package expressivo;
+
+import java.time.Duration;
+
+/**
+ * Thrown when a computation runs out of its Budget or the budget is cancelled. Reports how much work had
+ * been done when it stopped.
+ */
+public class BudgetExceededException extends RuntimeException
+{
+    private static final long serialVersionUID = 1;
+
+    /**
+     * Which limit stopped the computation.
+     */
+    public enum Reason { NODES, STEPS, DEADLINE, CANCELLED }
+
+    private final Reason reason;
+    private final long nodes;
+    private final long steps;
+    private final Duration elapsed;
+
+    /**
+     * @param reason which limit stopped the computation.
+     * @param nodes the number of nodes created before it stopped.
+     * @param steps the number of nodes visited before it stopped.
+     * @param elapsed how long it ran.
+     */
+    public BudgetExceededException(Reason reason,long nodes,long steps,Duration elapsed)
+    {
+        super(reason+" budget exceeded after "+steps+" steps, "+nodes+" nodes, "+elapsed.toMillis()+"ms");
+        this.reason=reason;
+        this.nodes=nodes;
+        this.steps=steps;
+        this.elapsed=elapsed;
+    }
+
+    /**
+     * @return which limit stopped the computation.
+     */
+    public Reason getReason()
+    {
+        return reason;
+    }
+    /**
+     * @return the number of nodes created before the computation stopped.
+     */
+    public long getNodes()
+    {
+        return nodes;
+    }
+    /**
+     * @return the number of nodes visited before the computation stopped.
+     */
+    public long getSteps()
+    {
+        return steps;
+    }
+    /**
+     * @return how long the computation ran.
+     */
+    public Duration getElapsed()
+    {
+        return elapsed;
+    }
+}
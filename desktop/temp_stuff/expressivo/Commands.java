@@ -4,9 +4,15 @@
 package expressivo;
 
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BiFunction;
+import java.util.function.Supplier;
 
 /**
  * String-based commands provided by the expression system.
+ * To chain commands without printing and re-parsing the expression in between, use a Session.
  * 
  * <p>PS3 instructions: this is a required class.
  * You MUST NOT change its name or package or the names or type signatures of existing methods.
@@ -18,6 +24,7 @@ public class Commands {
     
     /**
      * Differentiate an expression with respect to a variable.
+     * If a MemoStore is installed, a stored derivative is used instead of computing it again.
      * @param expression the expression to differentiate
      * @param variable the variable to differentiate by, a case-sensitive nonempty string of letters.
      * @return expression's derivative with respect to variable.  Must be a valid expression equal
@@ -28,7 +35,7 @@ public class Commands {
         try{
             Expression expressionRep=Expression.parse(expression);
             Expression withRespectTo=Expression.parse(variable);
-            Expression differentiated=expressionRep.differentiate(withRespectTo);
+            Expression differentiated=expressionRep.cachedDifferentiate(withRespectTo);
             return differentiated.toString();
         } catch(IllegalArgumentException error)
         {
@@ -40,6 +47,7 @@ public class Commands {
     
     /**
      * Simplify an expression.
+     * If a MemoStore is installed, a stored result is used instead of computing it again.
      * @param expression the expression to simplify
      * @param environment maps variables to values.  Variables are required to be case-sensitive nonempty 
      *         strings of letters.  The set of variables in environment is allowed to be different than the 
@@ -52,14 +60,124 @@ public class Commands {
     public static String simplify(String expression, Map<String,Double> environment) {
         try{
             Expression expression1=Expression.parse(expression);
-            return expression1.simplify(environment).toString();
+            return expression1.cachedSimplify(environment).toString();
         } catch(IllegalArgumentException error)
         {
             throw error;
         }
     }
     
+    /**
+     * Differentiate an expression on the common fork-join pool, without blocking the caller.
+     * @see #differentiateAsync(String, String, Executor)
+     */
+    public static CompletableFuture<String> differentiateAsync(String expression, String variable) {
+        return differentiateAsync(expression, variable, ForkJoinPool.commonPool());
+    }
     
+    /**
+     * Differentiate an expression on executor, without blocking the caller.
+     * Unlike differentiate, does not use the installed MemoStore.
+     * @param expression the expression to differentiate
+     * @param variable the variable to differentiate by, a case-sensitive nonempty string of letters.
+     * @param executor runs the computation, e.g. a virtual-thread-per-task executor.
+     * @return a future of the string differentiate(expression, variable) returns. Completes exceptionally
+     *         with IllegalArgumentException if the expression or variable is invalid. Cancelling it stops
+     *         the computation at the next node it visits.
+     */
+    public static CompletableFuture<String> differentiateAsync(String expression, String variable, Executor executor) {
+        return parseAsync(expression, executor,
+            (expressionRep, budget) -> expressionRep.differentiate(Expression.parse(variable), budget));
+    }
     
+    /**
+     * Differentiate an expression on executor, without blocking the caller.
+     * @param expression the expression to differentiate
+     * @param withRespectTo the variable to differentiate by.
+     * @param budget limits on the computation; it is cancelled when the returned future is.
+     * @param executor runs the computation, e.g. a virtual-thread-per-task executor.
+     * @return a future of expression.differentiate(withRespectTo). Completes exceptionally with
+     *         BudgetExceededException if the budget runs out. Cancelling it stops the computation at the
+     *         next node it visits.
+     */
+    public static CompletableFuture<Expression> differentiateAsync(Expression expression, Expression withRespectTo,
+            Budget budget, Executor executor) {
+        return runAsync(budget, executor, () -> expression.differentiate(withRespectTo, budget));
+    }
     
+    /**
+     * Simplify an expression on the common fork-join pool, without blocking the caller.
+     * @see #simplifyAsync(String, Map, Executor)
+     */
+    public static CompletableFuture<String> simplifyAsync(String expression, Map<String,Double> environment) {
+        return simplifyAsync(expression, environment, ForkJoinPool.commonPool());
+    }
+    
+    /**
+     * Simplify an expression on executor, without blocking the caller.
+     * Unlike simplify, does not use the installed MemoStore.
+     * @param expression the expression to simplify
+     * @param environment maps variables to values, as for simplify; must not change until the future completes.
+     * @param executor runs the computation, e.g. a virtual-thread-per-task executor.
+     * @return a future of the string simplify(expression, environment) returns. Completes exceptionally
+     *         with IllegalArgumentException if the expression is invalid. Cancelling it stops the
+     *         computation at the next node it visits.
+     */
+    public static CompletableFuture<String> simplifyAsync(String expression, Map<String,Double> environment,
+            Executor executor) {
+        return parseAsync(expression, executor,
+            (expressionRep, budget) -> expressionRep.simplify(environment, budget));
+    }
+    
+    /**
+     * Simplify an expression on executor, without blocking the caller.
+     * @param expression the expression to simplify
+     * @param environment maps variables to values; must not change until the future completes.
+     * @param budget limits on the computation; it is cancelled when the returned future is.
+     * @param executor runs the computation, e.g. a virtual-thread-per-task executor.
+     * @return a future of expression.simplify(environment). Completes exceptionally with
+     *         BudgetExceededException if the budget runs out. Cancelling it stops the computation at the
+     *         next node it visits.
+     */
+    public static CompletableFuture<Expression> simplifyAsync(Expression expression, Map<String,Double> environment,
+            Budget budget, Executor executor) {
+        return runAsync(budget, executor, () -> expression.simplify(environment, budget));
+    }
+    
+    // Parses on executor too, so that a long input doesn't block the caller either.
+    private static CompletableFuture<String> parseAsync(String expression, Executor executor,
+            BiFunction<Expression,Budget,Expression> operation) {
+        Budget budget=Budget.unlimited();
+        CompletableFuture<Expression> computation=
+            runAsync(budget, executor, () -> operation.apply(Expression.parse(expression), budget));
+        CompletableFuture<String> result=computation.thenApply(Expression::toString);
+        result.whenComplete((value, error) -> {
+            if (result.isCancelled()) {
+                computation.cancel(true);
+            }
+        });
+        return result;
+    }
+    
+    // Runs computation on executor; cancelling the returned future cancels budget, which the computation checks.
+    private static CompletableFuture<Expression> runAsync(Budget budget, Executor executor,
+            Supplier<Expression> computation) {
+        CompletableFuture<Expression> result=new CompletableFuture<>();
+        result.whenComplete((value, error) -> {
+            if (result.isCancelled()) {
+                budget.cancel();
+            }
+        });
+        executor.execute(() -> {
+            if (result.isDone()) {
+                return; // cancelled before it started
+            }
+            try {
+                result.complete(computation.get());
+            } catch (RuntimeException | Error error) {
+                result.completeExceptionally(error);
+            }
+        });
+        return result;
+    }
 }
@@ -0,0 +1,267 @@
+package expressivo;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * An expression compiled into a flat program for a small stack machine, so that evaluating it at a point
+ * is a loop over an int array instead of a walk over the tree. The variables of the expression become
+ * numbered inputs, in the order given by getVariables().
+ *
+ * <p>Specializations made by specialize(expression, fixed) are cached per (fingerprint of the expression,
+ * fixed bindings), so sweep loops that specialize the same expression again and again only compile it
+ * once. The cache keeps the most recently used 256 specializations and none of the expressions they were
+ * made from.
+ */
+public final class CompiledExpression
+{
+    //Abstract Function
+    // Maps (residual, variables, code, constants) to the function from values of variables to the value of
+    // residual. code is a sequence of (opcode, operand) pairs run on a stack of doubles:
+    //   CONSTANT k pushes constants[k], LOAD v pushes values[v], ADD and MULTIPLY pop two and push one.
+    //Representation Invariant
+    // code.length is even. Running code on a stack of stackSize entries never overflows it and leaves
+    // exactly one value. Every LOAD operand is an index into variables, every CONSTANT operand an index
+    // into constants.
+    //Safety from Rep Exposure
+    // code and constants are never returned; variables is returned as an unmodifiable list and residual is
+    // immutable.
+    //Thread Safety
+    // Immutable. evaluate(values) uses a stack of its own; evaluate(values, workspace) is safe as long as
+    // callers don't share a workspace between threads. The specialization cache is synchronized, and is an
+    // LRU map keyed on [expression.fingerprint(), sorted fixed] so a lookup costs O(1) in the expression.
+    private static final int CONSTANT=0;
+    private static final int LOAD=1;
+    private static final int ADD=2;
+    private static final int MULTIPLY=3;
+    private static final int CACHE_SIZE=256;
+
+    private static final Map<List<Object>,CompiledExpression> SPECIALIZATIONS=Collections.synchronizedMap(
+            new LinkedHashMap<List<Object>,CompiledExpression>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1;
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<List<Object>,CompiledExpression> eldest)
+                {
+                    return size()>CACHE_SIZE;
+                }
+            });
+
+    private final Expression residual;
+    private final List<String> variables;
+    private final int[] code;
+    private final double[] constants;
+    private final int stackSize;
+
+    private void checkRep(){
+        assert code.length%2==0;
+        assert stackSize>=1;
+    }
+
+    private CompiledExpression(Expression residual,List<String> variables)
+    {
+        this.residual=residual;
+        this.variables=Collections.unmodifiableList(new ArrayList<>(variables));
+        Map<String,Integer> slots= new HashMap<>();
+        for (int x=0;x<variables.size();x++)
+        {
+            slots.put(variables.get(x), x);
+        }
+        // Reverse of a (node, right, left) preorder is the (left, right, node) postorder to emit.
+        List<Expression> preorder= new ArrayList<>();
+        Deque<Expression> pending= new ArrayDeque<>();
+        pending.push(residual);
+        while (!pending.isEmpty())
+        {
+            Expression node=LazyDerivative.unwrap(pending.pop());
+            preorder.add(node);
+            if (node instanceof Sum || node instanceof Product)
+            {
+                List<Expression> elements=node.getElements();
+                pending.push(elements.get(0));
+                pending.push(elements.get(1));
+            }
+        }
+        int[] program= new int[2*preorder.size()];
+        List<Double> pool= new ArrayList<>();
+        int depth=0;
+        int maxDepth=0;
+        for (int x=preorder.size()-1, pc=0;x>=0;x--, pc+=2)
+        {
+            Expression node=preorder.get(x);
+            if (node instanceof Sum || node instanceof Product)
+            {
+                program[pc]=node instanceof Sum ? ADD : MULTIPLY;
+                depth--;
+            }
+            else if (node instanceof Scalar)
+            {
+                program[pc]=CONSTANT;
+                program[pc+1]=pool.size();
+                pool.add(node.getConstant());
+                depth++;
+            }
+            else
+            {
+                Integer slot=slots.get(node.toString());
+                if (slot==null)
+                {
+                    throw new IllegalArgumentException("variable "+node+" is not one of "+variables);
+                }
+                program[pc]=LOAD;
+                program[pc+1]=slot;
+                depth++;
+            }
+            maxDepth=Math.max(maxDepth, depth);
+        }
+        this.code=program;
+        this.constants= new double[pool.size()];
+        for (int x=0;x<constants.length;x++)
+        {
+            constants[x]=pool.get(x);
+        }
+        this.stackSize=maxDepth;
+        checkRep();
+    }
+
+    /**
+     * @param expression the expression to compile.
+     * @return expression compiled over its variables, sorted by name.
+     */
+    public static CompiledExpression compile(Expression expression)
+    {
+        return new CompiledExpression(expression, new ArrayList<>(expression.variables()));
+    }
+
+    /**
+     * @param expression the expression to compile.
+     * @param variables the inputs of the compiled function, in order. Must contain every variable of
+     *        expression; may contain others, which are then ignored.
+     * @return expression compiled over variables.
+     * @throws IllegalArgumentException if expression has a variable that is not in variables.
+     */
+    public static CompiledExpression compile(Expression expression,List<String> variables)
+    {
+        return new CompiledExpression(expression, variables);
+    }
+
+    /**
+     * Folds the fixed variables into expression and compiles what is left into a function of the free
+     * variables only. Results are cached per (expression.fingerprint(), fixed), so an expression that only
+     * differs from one specialized earlier in the order or grouping of its operands gets the earlier
+     * residual, whose values are equal up to rounding.
+     * @param expression the expression to specialize.
+     * @param fixed values of the variables that stay fixed. May name variables that expression doesn't
+     *        have.
+     * @return the compiled residual expression, over its remaining variables sorted by name.
+     */
+    public static CompiledExpression specialize(Expression expression,Map<String,Double> fixed)
+    {
+        List<Object> key=Arrays.asList(expression.fingerprint(), new TreeMap<>(fixed));
+        CompiledExpression result=SPECIALIZATIONS.get(key);
+        if (result==null)
+        {
+            result=compile(expression.simplify(fixed));
+            SPECIALIZATIONS.put(key, result);
+        }
+        return result;
+    }
+
+    /**
+     * @return the expression that was compiled, after folding for specializations.
+     */
+    public Expression getResidual()
+    {
+        return residual;
+    }
+
+    /**
+     * @return the names of the inputs of this function, in the order evaluate expects their values.
+     */
+    public List<String> getVariables()
+    {
+        return variables;
+    }
+
+    /**
+     * @return the length a workspace passed to evaluate(values, workspace) must have at least.
+     */
+    public int workspaceSize()
+    {
+        return stackSize;
+    }
+
+    /**
+     * @param values the value of each variable, in the order of getVariables().
+     * @return the value of the expression at values.
+     */
+    public double evaluate(double... values)
+    {
+        return evaluate(values, new double[stackSize]);
+    }
+
+    /**
+     * Evaluates without allocating anything, for use in tight loops.
+     * @param values the value of each variable, in the order of getVariables().
+     * @param workspace scratch space of at least workspaceSize() entries; its contents are overwritten.
+     * @return the value of the expression at values.
+     */
+    public double evaluate(double[] values,double[] workspace)
+    {
+        int top=-1;
+        for (int pc=0;pc<code.length;pc+=2)
+        {
+            switch (code[pc])
+            {
+                case CONSTANT:
+                    workspace[++top]=constants[code[pc+1]];
+                    break;
+                case LOAD:
+                    workspace[++top]=values[code[pc+1]];
+                    break;
+                case ADD:
+                    top--;
+                    workspace[top]=workspace[top]+workspace[top+1];
+                    break;
+                default:
+                    top--;
+                    workspace[top]=workspace[top]*workspace[top+1];
+                    break;
+            }
+        }
+        return workspace[0];
+    }
+
+    /**
+     * @param environment maps variables to values; must contain every variable of getVariables().
+     * @return the value of the expression in environment.
+     * @throws IllegalArgumentException if environment lacks one of the variables.
+     */
+    public double evaluate(Map<String,Double> environment)
+    {
+        double[] values= new double[variables.size()];
+        for (int x=0;x<values.length;x++)
+        {
+            Double value=environment.get(variables.get(x));
+            if (value==null)
+            {
+                throw new IllegalArgumentException("no value for "+variables.get(x));
+            }
+            values[x]=value;
+        }
+        return evaluate(values);
+    }
+
+    @Override
+    public String toString()
+    {
+        return variables+" -> "+residual;
+    }
+}
@@ -0,0 +1,105 @@
+package expressivo;
+
+/**
+ * The cost of evaluating an expression, built up node by node, used by EGraph to pick the cheapest of
+ * equivalent forms. The cost of a sum or product must be greater than the cost of each of its operands.
+ */
+public interface CostModel
+{
+    /**
+     * @param value the value of a scalar.
+     * @return the cost of the scalar.
+     */
+    public double scalar(double value);
+
+    /**
+     * @param name the name of a variable.
+     * @return the cost of the variable.
+     */
+    public double variable(String name);
+
+    /**
+     * @param left the cost of the left operand.
+     * @param right the cost of the right operand.
+     * @return the cost of their sum.
+     */
+    public double sum(double left,double right);
+
+    /**
+     * @param left the cost of the left operand.
+     * @param right the cost of the right operand.
+     * @return the cost of their product.
+     */
+    public double product(double left,double right);
+
+    /**
+     * @return the model counting every addition and multiplication as 1 and leaves as 0.
+     */
+    public static CostModel operationCount()
+    {
+        return weighted(1, 1);
+    }
+
+    /**
+     * @param addition the cost of one addition, > 0.
+     * @param multiplication the cost of one multiplication, > 0.
+     * @return the model adding up the cost of every operation; leaves cost 0.
+     */
+    public static CostModel weighted(double addition,double multiplication)
+    {
+        return new CostModel() {
+            @Override
+            public double scalar(double value)
+            {
+                return 0;
+            }
+            @Override
+            public double variable(String name)
+            {
+                return 0;
+            }
+            @Override
+            public double sum(double left,double right)
+            {
+                return addition+left+right;
+            }
+            @Override
+            public double product(double left,double right)
+            {
+                return multiplication+left+right;
+            }
+        };
+    }
+
+    /**
+     * @param addition the latency of one addition, > 0.
+     * @param multiplication the latency of one multiplication, > 0.
+     * @return the model whose cost is the length of the critical path, assuming independent operations
+     *         run in parallel; leaves cost 0.
+     */
+    public static CostModel latency(double addition,double multiplication)
+    {
+        return new CostModel() {
+            @Override
+            public double scalar(double value)
+            {
+                return 0;
+            }
+            @Override
+            public double variable(String name)
+            {
+                return 0;
+            }
+            @Override
+            public double sum(double left,double right)
+            {
+                return addition+Math.max(left, right);
+            }
+            @Override
+            public double product(double left,double right)
+            {
+                return multiplication+Math.max(left, right);
+            }
+        };
+    }
+}
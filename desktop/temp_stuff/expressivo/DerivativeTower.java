@@ -0,0 +1,179 @@
+package expressivo;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Higher-order and mixed partial derivatives of one expression. Every derivative that is computed is
+ * remembered, and since mixed partials commute, it is remembered under the multiset of variables it was
+ * taken by: d/dx d/dy f and d/dy d/dx f are computed once. A derivative of order n is always built from
+ * a remembered derivative of order n-1 by any one of its variables, so d2/dx dy reuses d/dy as well as
+ * d/dx, and a whole tower of derivatives costs one differentiate per entry. Each entry is simplified, and
+ * its products by 0 and 1 and sums with 0 are rewritten away, before it is remembered, so the terms that
+ * differentiating constants leaves behind don't pile up from one order to the next.
+ */
+public class DerivativeTower
+{
+    //Abstract Function
+    // Maps an expression to the (infinite) set of all its partial derivatives, of which cache holds the
+    // ones computed so far. A key is the sorted list of variable names differentiated by. identities
+    // prunes each new entry, and shares the nodes of one entry with the next.
+    //Representation Invariant
+    // cache contains the empty key mapped to expression. Every key in cache is sorted, and every key other
+    // than the empty key has some key one name shorter (the key without one of its names) in cache as well.
+    //Safety from Rep Exposure
+    // cache is private and never returned; keys are built from fresh lists. Expressions are immutable.
+    //Thread Safety
+    // Every method that touches cache is synchronized on this; identities is thread-safe.
+    private static final List<RewriteRule> IDENTITIES=Collections.unmodifiableList(Arrays.asList(
+            RewriteRule.parse("zeroRight", "a*0", "0", "a"),
+            RewriteRule.parse("zeroLeft", "0*a", "0", "a"),
+            RewriteRule.parse("oneRight", "a*1", "a", "a"),
+            RewriteRule.parse("oneLeft", "1*a", "a", "a"),
+            RewriteRule.parse("plusZeroRight", "a+0", "a", "a"),
+            RewriteRule.parse("plusZeroLeft", "0+a", "a", "a")));
+
+    private final Expression expression;
+    private final RewriteEngine identities= new RewriteEngine(IDENTITIES);
+    private final Map<List<String>,Expression> cache= new HashMap<>();
+
+    private void checkRep(){
+        assert cache.get(Collections.<String>emptyList())==expression;
+    }
+    /**
+     * @param expression the expression whose derivatives will be taken.
+     */
+    public DerivativeTower(Expression expression)
+    {
+        this.expression=expression;
+        cache.put(Collections.<String>emptyList(), expression);
+        checkRep();
+    }
+
+    /**
+     * Differentiates by every variable of sequence, in any order since the result doesn't depend on it.
+     * @param sequence the variables to differentiate by, with repetition for higher orders. Must all be
+     *        variables as made by Expression.makeVariable. An empty sequence gives the expression itself.
+     * @return the partial derivative of the expression by all of sequence, simplified with no bindings and
+     *         without products by 0 or 1 or sums with 0.
+     * @throws IllegalArgumentException if an element of sequence is not a variable.
+     */
+    public synchronized Expression get(Expression... sequence)
+    {
+        String[] names= new String[sequence.length];
+        for (int x=0;x<sequence.length;x++)
+        {
+            names[x]=nameOf(sequence[x]);
+        }
+        Arrays.sort(names);
+        Expression result=lookup(Arrays.asList(names));
+        checkRep();
+        return result;
+    }
+
+    /**
+     * @param variable the variable to differentiate by. Must be a variable.
+     * @param maxOrder the highest order wanted. Must be >= 0.
+     * @return a list of size maxOrder+1 whose n-th entry is the n-th derivative by variable
+     *         (entry 0 is the expression itself).
+     * @throws IllegalArgumentException if variable is not a variable or maxOrder is negative.
+     */
+    public synchronized List<Expression> derivatives(Expression variable,int maxOrder)
+    {
+        if (maxOrder<0)
+        {
+            throw new IllegalArgumentException("maxOrder must be non-negative");
+        }
+        String name=nameOf(variable);
+        List<Expression> result= new ArrayList<>();
+        List<String> key= new ArrayList<>();
+        result.add(expression);
+        for (int order=1;order<=maxOrder;order++)
+        {
+            key.add(name);
+            result.add(lookup(new ArrayList<>(key)));
+        }
+        checkRep();
+        return result;
+    }
+
+    /**
+     * @return the number of distinct derivatives remembered so far, including the expression itself.
+     */
+    public synchronized int size()
+    {
+        return cache.size();
+    }
+
+    // Builds key's derivative from a remembered derivative one variable short of it, descending through
+    // shorter sub-multisets until one is remembered. key must be sorted.
+    private Expression lookup(List<String> key)
+    {
+        Expression found=cache.get(key);
+        if (found!=null)
+        {
+            return found;
+        }
+        // missing holds the keys still to build, each with the variable it adds to the one below it.
+        Deque<List<String>> missing= new ArrayDeque<>();
+        Deque<String> added= new ArrayDeque<>();
+        List<String> current=key;
+        while (!cache.containsKey(current))
+        {
+            List<String> shorter=null;
+            String by=null;
+            for (int x=current.size()-1;x>=0 && shorter==null;x--)
+            {
+                if (x+1<current.size() && current.get(x).equals(current.get(x+1)))
+                {
+                    continue;
+                }
+                List<String> candidate=without(current, x);
+                if (cache.containsKey(candidate))
+                {
+                    shorter=candidate;
+                    by=current.get(x);
+                }
+            }
+            if (shorter==null)
+            {
+                shorter=without(current, current.size()-1);
+                by=current.get(current.size()-1);
+            }
+            missing.push(current);
+            added.push(by);
+            current=shorter;
+        }
+        Expression derivative=cache.get(current);
+        while (!missing.isEmpty())
+        {
+            derivative=identities.rewrite(derivative.differentiate(Expression.makeVariable(added.pop()))
+                    .simplify(Collections.<String,Double>emptyMap()));
+            cache.put(missing.pop(), derivative);
+        }
+        return derivative;
+    }
+
+    private static List<String> without(List<String> key,int index)
+    {
+        List<String> shorter= new ArrayList<>(key.size()-1);
+        shorter.addAll(key.subList(0, index));
+        shorter.addAll(key.subList(index+1, key.size()));
+        return shorter;
+    }
+
+    private static String nameOf(Expression variable)
+    {
+        if (!(variable instanceof Variable))
+        {
+            throw new IllegalArgumentException("can only differentiate by a variable: "+variable);
+        }
+        return variable.toString();
+    }
+}
@@ -0,0 +1,649 @@
+package expressivo;
+
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.IntSupplier;
+
+/**
+ * An e-graph: a compact representation of many equivalent expressions at once, as equivalence classes
+ * (e-classes) of nodes whose operands are e-classes. Saturating it applies the algebraic identities of +
+ * and * everywhere at once (commutativity, associativity, distributivity and factoring, 0 and 1, and
+ * constant folding) without ever discarding a form, so that extraction can then pick the cheapest
+ * equivalent expression under any CostModel instead of whatever a greedy rewrite happened to reach.
+ *
+ * <p>Forms are equivalent as real-number expressions; floating-point evaluation of two equivalent forms
+ * may round differently, as with expand(). Saturation stops early at the node or iteration limit, in which
+ * case extraction still gives the cheapest form found so far.
+ */
+public class EGraph
+{
+    //Abstract Function
+    // Maps (unionFind, classes) to a partition of expressions into classes of equivalent ones: class c,
+    // canonical when find(c) == c, contains every expression built from one of classes.get(c).nodes by
+    // replacing each operand class by one of its expressions.
+    //Representation Invariant
+    // classes has exactly the canonical ids as keys. When pending is empty: every node in a class has
+    // canonical operands, hashcons maps every such node to its class, and no two classes contain the same
+    // node (congruence). A class whose constant is set contains a scalar node of that value.
+    //Safety from Rep Exposure
+    // Nodes and classes are private and never returned; only int ids and new Expressions leave.
+    //Thread Safety
+    // Every public method is synchronized on this.
+    private static final int SCALAR=0;
+    private static final int VARIABLE=1;
+    private static final int SUM=2;
+    private static final int PRODUCT=3;
+
+    private final int maxNodes;
+    private final int maxIterations;
+    private final List<Integer> unionFind= new ArrayList<>();
+    private final Map<Integer,EClass> classes= new LinkedHashMap<>();
+    private final Map<ENode,Integer> hashcons= new HashMap<>();
+    private final List<Integer> pending= new ArrayList<>();
+    private boolean saturated=true;
+
+    private void checkRep(){
+        assert pending.isEmpty();
+        for (int id: classes.keySet())
+        {
+            assert find(id)==id;
+        }
+    }
+
+    /**
+     * Makes an empty e-graph with room for 10000 nodes and 30 iterations of saturation.
+     */
+    public EGraph()
+    {
+        this(10000, 30);
+    }
+
+    /**
+     * @param maxNodes saturation stops adding nodes once the graph has this many, > 0.
+     * @param maxIterations saturation stops after this many rounds of rule applications, >= 0.
+     */
+    public EGraph(int maxNodes,int maxIterations)
+    {
+        if (maxNodes<=0 || maxIterations<0)
+        {
+            throw new IllegalArgumentException("maxNodes must be positive and maxIterations non-negative");
+        }
+        this.maxNodes=maxNodes;
+        this.maxIterations=maxIterations;
+    }
+
+    /**
+     * Saturates a new default e-graph with expression and extracts its cheapest form.
+     * @param expression the expression to optimize.
+     * @param costModel the cost to minimize.
+     * @return an expression equivalent to expression, of least cost among the forms found.
+     */
+    public static Expression optimize(Expression expression,CostModel costModel)
+    {
+        EGraph graph= new EGraph();
+        int root=graph.add(expression);
+        graph.saturate();
+        return graph.extract(root, costModel);
+    }
+
+    /**
+     * @param expression an expression to put into the graph.
+     * @return the e-class of expression.
+     */
+    public synchronized int add(Expression expression)
+    {
+        Map<Expression,Integer> done= new IdentityHashMap<>();
+        Deque<Expression> todo= new ArrayDeque<>();
+        todo.push(expression);
+        while (!todo.isEmpty())
+        {
+            Expression node=LazyDerivative.unwrap(todo.peek());
+            if (node instanceof Sum || node instanceof Product)
+            {
+                List<Expression> elements=node.getElements();
+                Integer left=done.get(elements.get(0));
+                Integer right=done.get(elements.get(1));
+                if (left==null || right==null)
+                {
+                    todo.push(elements.get(1));
+                    todo.push(elements.get(0));
+                    continue;
+                }
+                int op=node instanceof Sum ? SUM : PRODUCT;
+                done.put(todo.pop(), add(new ENode(op, 0, null, left, right)));
+            }
+            else if (node instanceof Scalar)
+            {
+                done.put(todo.pop(), scalar(node.getConstant()));
+            }
+            else
+            {
+                done.put(todo.pop(), add(new ENode(VARIABLE, 0, node.toString(), -1, -1)));
+            }
+        }
+        rebuild();
+        saturated=false;
+        checkRep();
+        return find(done.get(expression));
+    }
+
+    /**
+     * Applies the rules until nothing changes any more or a limit is reached.
+     * @return the number of iterations run.
+     */
+    public synchronized int saturate()
+    {
+        int iterations=0;
+        while (!saturated && iterations<maxIterations && hashcons.size()<maxNodes)
+        {
+            iterations++;
+            int before=hashcons.size();
+            List<int[]> merges= new ArrayList<>();
+            List<IntSupplier> additions= new ArrayList<>();
+            // Each addition makes at most a few nodes, so matching can stop at about as many as there is room for.
+            int room=maxNodes-hashcons.size();
+            boolean truncated=false;
+            for (Map.Entry<Integer,EClass> entry: classes.entrySet())
+            {
+                for (ENode node: entry.getValue().nodes)
+                {
+                    if (additions.size()/2<room)
+                    {
+                        match(entry.getKey(), node, merges, additions);
+                    }
+                    else
+                    {
+                        truncated=true;
+                    }
+                }
+            }
+            boolean changed=false;
+            for (int[] merge: merges)
+            {
+                changed|=merge(merge[0], merge[1]);
+            }
+            for (int x=0;x<additions.size();x+=2)
+            {
+                if (hashcons.size()>=maxNodes)
+                {
+                    truncated=true;
+                    break;
+                }
+                int target=additions.get(x).getAsInt();
+                changed|=merge(target, additions.get(x+1).getAsInt());
+            }
+            rebuild();
+            boolean stuck=!changed && hashcons.size()==before;
+            saturated=stuck && !truncated;
+            if (stuck)
+            {
+                break; // a truncated round that changed nothing would only repeat itself
+            }
+        }
+        checkRep();
+        return iterations;
+    }
+
+    /**
+     * @return true if the last saturate ran until no rule changed anything, rather than stopping at a limit.
+     */
+    public synchronized boolean isSaturated()
+    {
+        return saturated;
+    }
+
+    /**
+     * @param first an e-class.
+     * @param second another e-class.
+     * @return true if the graph knows the expressions of both classes to be equivalent.
+     */
+    public synchronized boolean equivalent(int first,int second)
+    {
+        return find(first)==find(second);
+    }
+
+    /**
+     * @return the number of distinct nodes in the graph.
+     */
+    public synchronized int size()
+    {
+        return hashcons.size();
+    }
+
+    /**
+     * @return the number of e-classes in the graph.
+     */
+    public synchronized int classCount()
+    {
+        return classes.size();
+    }
+
+    /**
+     * @param eclass an e-class.
+     * @param costModel the cost to minimize.
+     * @return the cheapest expression of eclass under costModel.
+     */
+    public synchronized Expression extract(int eclass,CostModel costModel)
+    {
+        Map<Integer,Double> costs= new HashMap<>();
+        Map<Integer,ENode> best= new HashMap<>();
+        boolean improved=true;
+        while (improved)
+        {
+            improved=false;
+            for (Map.Entry<Integer,EClass> entry: classes.entrySet())
+            {
+                for (ENode node: entry.getValue().nodes)
+                {
+                    double cost=cost(node, costs, costModel);
+                    Double known=costs.get(entry.getKey());
+                    if (!Double.isNaN(cost) && (known==null || cost<known))
+                    {
+                        costs.put(entry.getKey(), cost);
+                        best.put(entry.getKey(), node);
+                        improved=true;
+                    }
+                }
+            }
+        }
+        // Costs grow from operands to node, so following best never loops.
+        Map<Integer,Expression> built= new HashMap<>();
+        Deque<Integer> todo= new ArrayDeque<>();
+        todo.push(find(eclass));
+        while (!todo.isEmpty())
+        {
+            int id=todo.peek();
+            ENode node=best.get(id);
+            if (built.containsKey(id))
+            {
+                todo.pop();
+            }
+            else if (node.op==SCALAR)
+            {
+                built.put(todo.pop(), Expression.makeScalar(node.value));
+            }
+            else if (node.op==VARIABLE)
+            {
+                built.put(todo.pop(), Expression.makeVariable(node.name));
+            }
+            else if (!built.containsKey(node.left) || !built.containsKey(node.right))
+            {
+                todo.push(node.right);
+                todo.push(node.left);
+            }
+            else
+            {
+                Expression left=built.get(node.left);
+                Expression right=built.get(node.right);
+                built.put(todo.pop(),
+                        node.op==SUM ? Expression.makeSum(left, right) : Expression.makeProduct(left, right));
+            }
+        }
+        return built.get(find(eclass));
+    }
+
+    // The cost of node given the best known costs of classes, or NaN if an operand has none yet.
+    private static double cost(ENode node,Map<Integer,Double> costs,CostModel costModel)
+    {
+        switch (node.op)
+        {
+            case SCALAR:
+                return costModel.scalar(node.value);
+            case VARIABLE:
+                return costModel.variable(node.name);
+            default:
+                Double left=costs.get(node.left);
+                Double right=costs.get(node.right);
+                if (left==null || right==null)
+                {
+                    return Double.NaN;
+                }
+                return node.op==SUM ? costModel.sum(left, right) : costModel.product(left, right);
+        }
+    }
+
+    // Finds the rule applications at node of class id. A merge is a pair of classes; additions come in
+    // pairs of suppliers, the class to merge into and the node to add to it.
+    private void match(int id,ENode node,List<int[]> merges,List<IntSupplier> additions)
+    {
+        if (node.op!=SUM && node.op!=PRODUCT)
+        {
+            return;
+        }
+        int op=node.op;
+        int a=node.left;
+        int b=node.right;
+        EClass right=classes.get(b);
+        EClass left=classes.get(a);
+        // a+b = b+a, a*b = b*a
+        rewrite(additions, id, () -> add(new ENode(op, 0, null, b, a)));
+        // a+0 = a, a*1 = a
+        Double identity=right.constant;
+        if (identity!=null && identity==(op==SUM ? 0 : 1))
+        {
+            merges.add(new int[] {id, a});
+        }
+        // a*0 = 0
+        if (op==PRODUCT && identity!=null && identity==0)
+        {
+            merges.add(new int[] {id, b});
+        }
+        for (ENode inner: right.nodes)
+        {
+            // a+(c+d) = (a+c)+d, a*(c*d) = (a*c)*d
+            if (inner.op==op)
+            {
+                int c=inner.left;
+                int d=inner.right;
+                rewrite(additions, id, () -> add(new ENode(op, 0, null,
+                        add(new ENode(op, 0, null, a, c)), d)));
+            }
+            // a*(c+d) = a*c+a*d
+            if (op==PRODUCT && inner.op==SUM)
+            {
+                int c=inner.left;
+                int d=inner.right;
+                rewrite(additions, id, () -> add(new ENode(SUM, 0, null,
+                        add(new ENode(PRODUCT, 0, null, a, c)), add(new ENode(PRODUCT, 0, null, a, d)))));
+            }
+        }
+        if (op==SUM)
+        {
+            for (ENode first: left.nodes)
+            {
+                if (first.op!=PRODUCT)
+                {
+                    continue;
+                }
+                int x=first.left;
+                int y=first.right;
+                // x*y+x = x*(y+1)
+                if (find(x)==find(b))
+                {
+                    rewrite(additions, id, () -> add(new ENode(PRODUCT, 0, null, x,
+                            add(new ENode(SUM, 0, null, y, scalar(1))))));
+                }
+                // x*y+x*v = x*(y+v)
+                for (ENode second: right.nodes)
+                {
+                    if (second.op==PRODUCT && find(second.left)==find(x))
+                    {
+                        int v=second.right;
+                        rewrite(additions, id, () -> add(new ENode(PRODUCT, 0, null, x,
+                                add(new ENode(SUM, 0, null, y, v)))));
+                    }
+                }
+            }
+        }
+    }
+
+    private static void rewrite(List<IntSupplier> additions,int id,IntSupplier node)
+    {
+        additions.add(() -> id);
+        additions.add(node);
+    }
+
+    private int scalar(double value)
+    {
+        return add(new ENode(SCALAR, value, null, -1, -1));
+    }
+
+    private int find(int id)
+    {
+        int root=id;
+        while (unionFind.get(root)!=root)
+        {
+            root=unionFind.get(root);
+        }
+        while (unionFind.get(id)!=root)
+        {
+            int next=unionFind.get(id);
+            unionFind.set(id, root);
+            id=next;
+        }
+        return root;
+    }
+
+    private ENode canonical(ENode node)
+    {
+        if (node.op==SCALAR || node.op==VARIABLE)
+        {
+            return node;
+        }
+        return new ENode(node.op, 0, null, find(node.left), find(node.right));
+    }
+
+    // The class of node, adding it in a class of its own if it is new.
+    private int add(ENode node)
+    {
+        node=canonical(node);
+        Integer known=hashcons.get(node);
+        if (known!=null)
+        {
+            return find(known);
+        }
+        int id=unionFind.size();
+        unionFind.add(id);
+        EClass eclass= new EClass();
+        eclass.nodes.add(node);
+        eclass.constant=constantOf(node);
+        classes.put(id, eclass);
+        hashcons.put(node, id);
+        if (node.op==SUM || node.op==PRODUCT)
+        {
+            classes.get(node.left).parents.add(new AbstractMap.SimpleImmutableEntry<>(node, id));
+            classes.get(node.right).parents.add(new AbstractMap.SimpleImmutableEntry<>(node, id));
+        }
+        fold(id);
+        return find(id);
+    }
+
+    private Double constantOf(ENode node)
+    {
+        switch (node.op)
+        {
+            case SCALAR:
+                return node.value;
+            case VARIABLE:
+                return null;
+            default:
+                Double left=classes.get(find(node.left)).constant;
+                Double right=classes.get(find(node.right)).constant;
+                if (left==null || right==null)
+                {
+                    return null;
+                }
+                return node.op==SUM ? left+right : left*right;
+        }
+    }
+
+    // Constant folding: puts the scalar of a class's constant value into the class.
+    private void fold(int id)
+    {
+        Double constant=classes.get(id).constant;
+        if (constant!=null)
+        {
+            merge(id, scalar(constant));
+        }
+    }
+
+    private boolean merge(int first,int second)
+    {
+        first=find(first);
+        second=find(second);
+        if (first==second)
+        {
+            return false;
+        }
+        EClass winner=classes.get(first);
+        EClass loser=classes.get(second);
+        if (winner.nodes.size()+winner.parents.size()<loser.nodes.size()+loser.parents.size())
+        {
+            int swap=first;
+            first=second;
+            second=swap;
+            EClass swapClass=winner;
+            winner=loser;
+            loser=swapClass;
+        }
+        unionFind.set(second, first);
+        classes.remove(second);
+        winner.nodes.addAll(loser.nodes);
+        winner.parents.addAll(loser.parents);
+        if (winner.constant==null)
+        {
+            winner.constant=loser.constant;
+        }
+        pending.add(first);
+        return true;
+    }
+
+    // Restores the invariant after merges: re-canonicalizes the parents of merged classes and merges the
+    // ones that became congruent, until no more do.
+    private void rebuild()
+    {
+        while (!pending.isEmpty())
+        {
+            Set<Integer> todo= new LinkedHashSet<>();
+            for (int id: pending)
+            {
+                todo.add(find(id));
+            }
+            pending.clear();
+            for (int id: todo)
+            {
+                repair(find(id));
+            }
+        }
+        for (EClass eclass: classes.values())
+        {
+            Set<ENode> nodes= new LinkedHashSet<>();
+            for (ENode node: eclass.nodes)
+            {
+                nodes.add(canonical(node));
+            }
+            eclass.nodes= new ArrayList<>(nodes);
+        }
+    }
+
+    private void repair(int id)
+    {
+        EClass eclass=classes.get(id);
+        for (Map.Entry<ENode,Integer> parent: eclass.parents)
+        {
+            hashcons.remove(parent.getKey());
+            hashcons.put(canonical(parent.getKey()), find(parent.getValue()));
+        }
+        Map<ENode,Integer> parents= new HashMap<>();
+        for (Map.Entry<ENode,Integer> parent: new ArrayList<>(eclass.parents))
+        {
+            ENode node=canonical(parent.getKey());
+            Integer congruent=parents.get(node);
+            if (congruent!=null)
+            {
+                merge(congruent, parent.getValue());
+            }
+            parents.put(node, find(parent.getValue()));
+        }
+        List<Map.Entry<ENode,Integer>> repaired= new ArrayList<>();
+        for (Map.Entry<ENode,Integer> parent: parents.entrySet())
+        {
+            repaired.add(new AbstractMap.SimpleImmutableEntry<>(parent.getKey(), find(parent.getValue())));
+        }
+        int now=find(id);
+        if (now==id)
+        {
+            eclass.parents=repaired;
+        }
+        else
+        {
+            classes.get(now).parents.addAll(repaired);
+        }
+        EClass current=classes.get(now);
+        if (current.constant!=null)
+        {
+            boolean hasScalar=false;
+            for (ENode node: current.nodes)
+            {
+                hasScalar|=node.op==SCALAR;
+            }
+            if (!hasScalar)
+            {
+                fold(now);
+            }
+        }
+        // Operands that became constant make their parents constant too.
+        for (Map.Entry<ENode,Integer> parent: parents.entrySet())
+        {
+            EClass parentClass=classes.get(find(parent.getValue()));
+            if (parentClass.constant==null)
+            {
+                Double constant=constantOf(parent.getKey());
+                if (constant!=null)
+                {
+                    parentClass.constant=constant;
+                    fold(find(parent.getValue()));
+                }
+            }
+        }
+    }
+
+    /**
+     * An e-node: an operation with e-classes as operands, or a leaf.
+     */
+    private static final class ENode
+    {
+        private final int op;
+        private final double value;
+        private final String name;
+        private final int left;
+        private final int right;
+
+        ENode(int op,double value,String name,int left,int right)
+        {
+            this.op=op;
+            this.value=value;
+            this.name=name;
+            this.left=left;
+            this.right=right;
+        }
+        @Override
+        public boolean equals(Object thatObject)
+        {
+            if (!(thatObject instanceof ENode)) return false;
+            ENode thatNode=(ENode)thatObject;
+            return op==thatNode.op && Double.doubleToLongBits(value)==Double.doubleToLongBits(thatNode.value)
+                    && (name==null ? thatNode.name==null : name.equals(thatNode.name))
+                    && left==thatNode.left && right==thatNode.right;
+        }
+        @Override
+        public int hashCode()
+        {
+            int hash=op;
+            hash=31*hash+Double.hashCode(value);
+            hash=31*hash+(name==null ? 0 : name.hashCode());
+            hash=31*hash+left;
+            return 31*hash+right;
+        }
+    }
+
+    /**
+     * An e-class: its nodes, the nodes that have it as an operand (with their classes), and its value if
+     * constant folding found one.
+     */
+    private static final class EClass
+    {
+        private List<ENode> nodes= new ArrayList<>();
+        private List<Map.Entry<ENode,Integer>> parents= new ArrayList<>();
+        private Double constant;
+    }
+}
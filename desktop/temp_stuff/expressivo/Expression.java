@@ -4,21 +4,26 @@
 package expressivo;
 
 
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.SortedSet;
 import java.util.Stack;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
-import org.antlr.v4.runtime.ANTLRInputStream;
-import org.antlr.v4.runtime.CharStream;
-import org.antlr.v4.runtime.CommonTokenStream;
 import org.antlr.v4.runtime.ParserRuleContext;
-import org.antlr.v4.runtime.TokenStream;
 import org.antlr.v4.runtime.tree.ErrorNode;
-import org.antlr.v4.runtime.tree.ParseTree;
-import org.antlr.v4.runtime.tree.ParseTreeWalker;
 import org.antlr.v4.runtime.tree.TerminalNode;
 
-import expressivo.parser.ExpressionLexer;
 import expressivo.parser.ExpressionListener;
 import expressivo.parser.ExpressionParser;
 
@@ -45,6 +50,16 @@ public interface Expression {
     {
         return new Scalar(scalar);
     }
+    /**
+     * @param scalar a non-negative rational.
+     * @return an exact Scalar of that value. Sums and products that simplify fold an exact scalar with any
+     *         other constant exactly, taking a double operand at its exact binary value. Like every scalar, it
+     *         equals the scalars whose double value is the same as its closest double.
+     */
+    public static Expression makeScalar(Rational scalar)
+    {
+        return new Scalar(scalar);
+    }
     /**
      * @param string takes in a non-empty string with no whitespace in it and is composed of letters of lower or upper case.
      * @return Expression that consists of string variable. 
@@ -83,17 +98,7 @@ public interface Expression {
      */
     public static Expression parse(String input) {
         try{
-            CharStream stream= new ANTLRInputStream(input);
-            ExpressionLexer lexer=new ExpressionLexer(stream);
-            lexer.reportErrorsAsExceptions();
-            TokenStream tokens = new CommonTokenStream(lexer);
-            ExpressionParser parser= new ExpressionParser(tokens);
-            parser.reportErrorsAsExceptions();
-            ParseTree tree =parser.root();
-            ParseTreeWalker walker= new ParseTreeWalker();
-            CollectTerms listener= new CollectTerms();
-            walker.walk(listener,tree); 
-            return listener.getResult(); 
+            return ParserPipeline.forCurrentThread().parse(input);
         }
         catch (RuntimeException error)
         {
@@ -101,11 +106,94 @@ public interface Expression {
             throw newError;
         } 
     }
+    /**
+     * Parse an expression in exact mode: every number becomes an exact Scalar of its decimal value, so
+     * 0.1 is exactly 1/10, and simplify then folds constants without rounding.
+     * @param input expression to parse, as defined for parse(String).
+     * @return expression AST for the input, with exact scalars.
+     * @throws IllegalArgumentException if the expression is invalid
+     */
+    public static Expression parseExact(String input) {
+        try{
+            return ParserPipeline.forCurrentThread().parse(input, true);
+        }
+        catch (RuntimeException error)
+        {
+            throw new IllegalArgumentException();
+        }
+    }
+    /**
+     * Parse many expressions in parallel. Every worker thread reuses one ANTLR lexer and parser.
+     * @param inputs expressions to parse, as defined for parse(String).
+     * @return the ASTs of inputs, in the same order.
+     * @throws IllegalArgumentException if any of the expressions is invalid
+     */
+    public static List<Expression> parseAll(List<String> inputs) {
+        return inputs.parallelStream().map(Expression::parse).collect(Collectors.toList());
+    }
+    /**
+     * Parse a stream of expressions in parallel, like parseAll(List).
+     * @param inputs expressions to parse, as defined for parse(String).
+     * @return a stream of the ASTs of inputs, in encounter order if inputs is ordered. Parsing happens as
+     *         the returned stream is consumed, and an invalid expression makes it throw
+     *         IllegalArgumentException at that point.
+     */
+    public static Stream<Expression> parseAll(Stream<String> inputs) {
+        return inputs.parallel().map(Expression::parse);
+    }
+    /**
+     * Fill the parser's shared caches by parsing representative expressions, so that the first real
+     * parses after startup run at steady-state speed. Safe to call any number of times from any thread.
+     */
+    public static void warmUp() {
+        ParserPipeline.warmUp();
+    }
+    /**
+     * Like warmUp(), but with expressions typical of the caller's workload.
+     * @param samples expressions to parse while warming up; invalid ones are ignored.
+     */
+    public static void warmUp(Iterable<String> samples) {
+        ParserPipeline.warmUp(samples);
+    }
+    /**
+     * Parse an expression read incrementally from input. Accepts the same language as parse(String) and
+     * returns an equal expression, but never holds more than a small buffer of the text in memory.
+     * @param input the text of the expression. It is read to its end but not closed.
+     * @return expression AST for the input
+     * @throws IOException if input can't be read
+     * @throws IllegalArgumentException if the expression is invalid
+     */
+    public static Expression parse(Reader input) throws IOException {
+        return StreamingParser.parse(input);
+    }
+    /**
+     * Parse an expression read incrementally from a channel of UTF-8 text, like parse(Reader).
+     * @param input the UTF-8 encoded text of the expression. It is read to its end but not closed.
+     * @return expression AST for the input
+     * @throws IOException if input can't be read
+     * @throws IllegalArgumentException if the expression is invalid
+     */
+    public static Expression parse(ReadableByteChannel input) throws IOException {
+        return StreamingParser.parse(Channels.newReader(input, StandardCharsets.UTF_8.newDecoder(), -1));
+    }
     class CollectTerms implements ExpressionListener
     {
         private Stack<Expression> stack=new Stack<>();
+        private final boolean exact;
         
-        private Expression getResult()
+        CollectTerms()
+        {
+            this(false);
+        }
+        /**
+         * @param exact true to make exact scalars of the numbers.
+         */
+        CollectTerms(boolean exact)
+        {
+            this.exact=exact;
+        }
+        
+        Expression getResult()
         {
             return stack.get(0);
         }
@@ -152,7 +240,9 @@ public interface Expression {
         {
             if (ctx.NUMBER()!=null)
             {
-                Expression expression = Expression.makeScalar(Double.valueOf(ctx.NUMBER().getText()));
+                String number=ctx.NUMBER().getText();
+                Expression expression = exact ? Expression.makeScalar(Rational.parse(number))
+                        : Expression.makeScalar(Double.valueOf(number));
                 stack.push(expression);
             }
             if (ctx.LETTER()!=null)
@@ -202,6 +292,75 @@ public interface Expression {
      * @return Differentiated expression
      */
     public Expression differentiate(Expression withRespectTo);
+    /**
+     * Differentiates like differentiate(withRespectTo), checking budget at every node visited and created.
+     * @param withRespectTo the variable to differentiate by.
+     * @param budget limits on the work done; used up by this call.
+     * @return Differentiated expression
+     * @throws BudgetExceededException as soon as budget runs out or is cancelled.
+     */
+    public Expression differentiate(Expression withRespectTo,Budget budget);
+    /**
+     * Differentiates the expression without building the derivative tree up front. Each level of the
+     * derivative is built (and remembered) only when it is first looked at, so evaluating it with simplify,
+     * asking isConstant, or printing part of it doesn't pay for the parts that are never visited.
+     * @param withRespectTo the variable to differentiate by.
+     * @return an Expression equal to differentiate(withRespectTo).
+     */
+    public default Expression lazyDifferentiate(Expression withRespectTo)
+    {
+        return new LazyDerivative(this,withRespectTo);
+    }
+    /**
+     * Takes a mixed or higher-order partial derivative in one pass, reusing every intermediate derivative.
+     * Use a DerivativeTower directly to also reuse results across several calls.
+     * @param sequence the variables to differentiate by, with repetition for higher orders.
+     * @return the partial derivative of this expression by all of sequence.
+     * @throws IllegalArgumentException if an element of sequence is not a variable.
+     */
+    public default Expression differentiate(Expression... sequence)
+    {
+        return new DerivativeTower(this).get(sequence);
+    }
+    /**
+     * @param variable the variable to differentiate by.
+     * @param maxOrder the highest order wanted, >= 0.
+     * @return the list of derivatives of orders 0 through maxOrder, each built from the previous one.
+     * @throws IllegalArgumentException if variable is not a variable or maxOrder is negative.
+     */
+    public default List<Expression> derivatives(Expression variable,int maxOrder)
+    {
+        return new DerivativeTower(this).derivatives(variable, maxOrder);
+    }
+    /**
+     * @param variables the variables of the rows and columns, without repetition.
+     * @return the sparse symmetric matrix of second derivatives of this expression by variables, with
+     *         a compiled evaluator.
+     * @throws IllegalArgumentException if an element of variables is not a variable or is repeated.
+     */
+    public default Hessian hessian(List<Expression> variables)
+    {
+        return new Hessian(this, variables);
+    }
+    /**
+     * @param variable the variable to solve for, the only variable of this expression.
+     * @return a Newton root finder for this expression as a function of variable, with this expression
+     *         and its derivative compiled once.
+     * @throws IllegalArgumentException if variable is not a variable or this expression has others.
+     */
+    public default RootFinder rootFinder(Expression variable)
+    {
+        return new RootFinder(this, variable);
+    }
+    /**
+     * @param costModel the cost to minimize.
+     * @return the cheapest form of this expression that equality saturation finds within the default
+     *         limits of EGraph. Equal to this expression as a real-number expression.
+     */
+    public default Expression optimize(CostModel costModel)
+    {
+        return EGraph.optimize(this, costModel);
+    }
     /**
      * 
      * @param expression the expression to simplify
@@ -213,7 +372,86 @@ public interface Expression {
      * the same structure (grouping and operators).
      */
     public Expression simplify(Map<String,Double> environment);
+    /**
+     * Simplifies like simplify(environment), checking budget at every node visited and created.
+     * @param environment maps variables to values, as for simplify(environment).
+     * @param budget limits on the work done; used up by this call.
+     * @return the simplified expression.
+     * @throws BudgetExceededException as soon as budget runs out or is cancelled.
+     */
+    public Expression simplify(Map<String,Double> environment,Budget budget);
+    /**
+     * @return a 128-bit fingerprint that is the same for expressions that differ only in the order or
+     * grouping of the operands of their sums and products, e.g. a+(b+c) and (c+a)+b. Computed once per
+     * node, in time linear in the size of the expression.
+     */
+    public Fingerprint fingerprint();
+    /**
+     * Same as differentiate, but checks the installed MemoStore first and records the result in it.
+     * @param withRespectTo the variable to differentiate by.
+     * @return an Expression equal to differentiate(withRespectTo).
+     */
+    public default Expression cachedDifferentiate(Expression withRespectTo)
+    {
+        Optional<MemoStore> store=MemoStore.installed();
+        return store.isPresent() ? store.get().differentiate(this, withRespectTo) : differentiate(withRespectTo);
+    }
+    /**
+     * Same as simplify, but checks the installed MemoStore first and records the result in it.
+     * @param environment maps variables to values, as for simplify.
+     * @return an Expression equal to simplify(environment).
+     */
+    public default Expression cachedSimplify(Map<String,Double> environment)
+    {
+        Optional<MemoStore> store=MemoStore.installed();
+        return store.isPresent() ? store.get().simplify(this, environment) : simplify(environment);
+    }
     public boolean isConstant();
+    /**
+     * @return the names of the variables that occur in this expression, sorted.
+     */
+    public default SortedSet<String> variables()
+    {
+        SortedSet<String> result= new TreeSet<>();
+        Deque<Expression> pending= new ArrayDeque<>();
+        pending.push(this);
+        while (!pending.isEmpty())
+        {
+            Expression node=LazyDerivative.unwrap(pending.pop());
+            if (node instanceof Variable)
+            {
+                result.add(node.toString());
+            }
+            else if (!(node instanceof Scalar))
+            {
+                for (Expression element: node.getElements())
+                {
+                    pending.push(element);
+                }
+            }
+        }
+        return result;
+    }
+    /**
+     * Multiplies out every product of sums and collects like terms.
+     * @return an expression equal in value to this one that is a flat sum of monomials
+     *         coefficient*v1*v2*..., sorted by decreasing degree and then by variable name. Coefficients
+     *         of 1 are left out, and an expression that is identically 0 expands to 0.
+     */
+    public default Expression expand()
+    {
+        return Polynomial.expand(this);
+    }
+    /**
+     * Fixes some variables and compiles the rest of the expression into a fast numeric function of the
+     * variables that remain free. Results are cached per (expression, fixed).
+     * @param fixed values of the variables to fix.
+     * @return this expression simplified with fixed, compiled over its remaining variables.
+     */
+    public default CompiledExpression specialize(Map<String,Double> fixed)
+    {
+        return CompiledExpression.specialize(this, fixed);
+    }
     /**
      * Expression must be constant to return an appropriate constant.
      * @return the constant associated with that constant Expression.
@@ -0,0 +1,284 @@
+package expressivo;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * A spreadsheet of named expressions. Each cell holds a formula whose variables may name other cells;
+ * its value is the formula simplified with the values of the cells it references. Changing a cell only
+ * marks it and the cells that depend on it, directly or not, as dirty, and the next read recomputes just
+ * those cells, each after the cells it references.
+ *
+ * <p>A referenced cell whose value is not a number (because it has free variables of its own) is not
+ * substituted; its name stays a variable in the cells that reference it.
+ *
+ * <p>With parallel recalculation, dirty cells that don't depend on each other are recomputed on the
+ * common fork-join pool.
+ */
+public class ExpressionGraph
+{
+    //Abstract Function
+    // Maps cells to a set of named formulas, each with the value it has once every cell it references
+    // has its own value. values holds the value of every cell that is not in dirty.
+    //Representation Invariant
+    // references and cells have the same keys, and references.get(c) is the set of variables of the formula
+    // of c. dependents.get(v) is the set of cells whose formula has variable v. Every dependent of a dirty cell is
+    // dirty. The cells, following references, form no cycle. values and dirty partition cells' keys.
+    //Safety from Rep Exposure
+    // Maps and sets are private and never returned; Expressions are immutable.
+    //Thread Safety
+    // Every public method is synchronized on this. During parallel recalculation the worker threads only
+    // read values of cells finished in an earlier wave and write their own results into a synchronized map,
+    // merged by the calling thread afterwards.
+    private static final int PARALLEL_THRESHOLD=64;
+
+    private final boolean parallel;
+    private final Map<String,Expression> cells= new HashMap<>();
+    private final Map<String,Set<String>> references= new HashMap<>();
+    private final Map<String,Set<String>> dependents= new HashMap<>();
+    private final Map<String,Expression> values= new HashMap<>();
+    private final Set<String> dirty= new HashSet<>();
+
+    private void checkRep(){
+        assert values.size()+dirty.size()==cells.size();
+    }
+
+    /**
+     * Makes an empty graph that recalculates one cell at a time.
+     */
+    public ExpressionGraph()
+    {
+        this(false);
+    }
+
+    /**
+     * @param parallel true to recompute independent cells in parallel.
+     */
+    public ExpressionGraph(boolean parallel)
+    {
+        this.parallel=parallel;
+    }
+
+    /**
+     * Sets the formula of a cell, creating it if needed.
+     * @param name the cell, a case-sensitive nonempty string of letters.
+     * @param formula its formula; its variables may name other cells.
+     * @throws IllegalArgumentException if this would make a cell depend on itself.
+     */
+    public synchronized void define(String name,Expression formula)
+    {
+        Set<String> variables=formula.variables();
+        if (reaches(variables, name))
+        {
+            throw new IllegalArgumentException("cell "+name+" would depend on itself");
+        }
+        cells.put(name, formula);
+        Set<String> old=references.put(name, variables);
+        if (old!=null)
+        {
+            for (String reference: old)
+            {
+                dependents.get(reference).remove(name);
+            }
+        }
+        for (String reference: variables)
+        {
+            dependents.computeIfAbsent(reference, key -> new HashSet<>()).add(name);
+        }
+        markDirty(name);
+        checkRep();
+    }
+
+    /**
+     * Makes a cell an input with the given value.
+     * @param name the cell.
+     * @param value its value.
+     */
+    public synchronized void set(String name,double value)
+    {
+        define(name, Expression.makeScalar(value));
+    }
+
+    /**
+     * Removes a cell. Cells that reference it see its name as a free variable again.
+     * @param name the cell.
+     */
+    public synchronized void remove(String name)
+    {
+        if (cells.remove(name)==null)
+        {
+            return;
+        }
+        for (String reference: references.remove(name))
+        {
+            dependents.get(reference).remove(name);
+        }
+        markDirty(name);
+        dirty.remove(name);
+        values.remove(name);
+        checkRep();
+    }
+
+    /**
+     * @param name a cell.
+     * @return the value of the cell, recomputing dirty cells first, or empty if there is no such cell.
+     */
+    public synchronized Optional<Expression> get(String name)
+    {
+        if (!cells.containsKey(name))
+        {
+            return Optional.empty();
+        }
+        recalculate();
+        return Optional.of(values.get(name));
+    }
+
+    /**
+     * @param name a cell.
+     * @return the numeric value of the cell, or empty if there is no such cell or its value is not a number.
+     */
+    public synchronized Optional<Double> getNumber(String name)
+    {
+        Optional<Expression> value=get(name);
+        if (value.isPresent() && value.get().isConstant())
+        {
+            return Optional.of(value.get().getConstant());
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * @return the names of all cells.
+     */
+    public synchronized Set<String> names()
+    {
+        return new HashSet<>(cells.keySet());
+    }
+
+    /**
+     * Recomputes every dirty cell, each after all dirty cells it references.
+     * @return the number of cells recomputed.
+     */
+    public synchronized int recalculate()
+    {
+        int recomputed=dirty.size();
+        Map<String,Integer> waitingOn= new HashMap<>();
+        List<String> wave= new ArrayList<>();
+        for (String name: dirty)
+        {
+            int count=0;
+            for (String reference: references.get(name))
+            {
+                if (dirty.contains(reference))
+                {
+                    count++;
+                }
+            }
+            waitingOn.put(name, count);
+            if (count==0)
+            {
+                wave.add(name);
+            }
+        }
+        while (!wave.isEmpty())
+        {
+            Map<String,Expression> results= new HashMap<>();
+            if (parallel && wave.size()>=PARALLEL_THRESHOLD)
+            {
+                results=Collections.synchronizedMap(results);
+                Map<String,Expression> target=results;
+                wave.parallelStream().forEach(name -> target.put(name, compute(name)));
+            }
+            else
+            {
+                for (String name: wave)
+                {
+                    results.put(name, compute(name));
+                }
+            }
+            List<String> next= new ArrayList<>();
+            for (String name: wave)
+            {
+                values.put(name, results.get(name));
+                dirty.remove(name);
+                for (String dependent: dependents.getOrDefault(name, Collections.<String>emptySet()))
+                {
+                    if (waitingOn.merge(dependent, -1, Integer::sum)==0)
+                    {
+                        next.add(dependent);
+                    }
+                }
+            }
+            wave=next;
+        }
+        checkRep();
+        return recomputed;
+    }
+
+    // Simplifies a cell's formula with the numeric values of the cells it references.
+    private Expression compute(String name)
+    {
+        Map<String,Double> environment= new HashMap<>();
+        for (String reference: references.get(name))
+        {
+            Expression value=values.get(reference);
+            if (value!=null && value.isConstant())
+            {
+                environment.put(reference, value.getConstant());
+            }
+        }
+        return cells.get(name).simplify(environment);
+    }
+
+    // Marks name (if it is a cell) and every cell depending on it as dirty.
+    private void markDirty(String name)
+    {
+        Deque<String> pending= new ArrayDeque<>();
+        pending.push(name);
+        while (!pending.isEmpty())
+        {
+            String node=pending.pop();
+            if (cells.containsKey(node))
+            {
+                if (!dirty.add(node))
+                {
+                    continue; // its dependents are already dirty
+                }
+                values.remove(node);
+            }
+            for (String dependent: dependents.getOrDefault(node, Collections.<String>emptySet()))
+            {
+                pending.push(dependent);
+            }
+        }
+    }
+
+    // True if target is one of starts or is referenced, through any chain of cells, by one of them.
+    private boolean reaches(Set<String> starts,String target)
+    {
+        Set<String> seen= new HashSet<>();
+        Deque<String> pending= new ArrayDeque<>(starts);
+        while (!pending.isEmpty())
+        {
+            String node=pending.pop();
+            if (node.equals(target))
+            {
+                return true;
+            }
+            Set<String> next=references.get(node);
+            if (seen.add(node) && next!=null)
+            {
+                pending.addAll(next);
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,209 @@
+package expressivo;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * A 128-bit fingerprint of an expression that, unlike hashCode, doesn't change when the operands of a sum
+ * or a product are reordered or regrouped: a+b, b+a, (a+b)+c and a+(b+c) all have the same fingerprint
+ * as long as their leaves do. Equal fingerprints mean the expressions are equal up to associativity and
+ * commutativity, except with probability about 2^-64 per pair.
+ *
+ * <p>The operands of a chain of sums (or products) are flattened and combined as a multiset: each
+ * operand's fingerprint is mixed and the mixed values are added, which doesn't depend on order or
+ * grouping. Every sum and product keeps the running total of its chain, so a node's fingerprint costs
+ * constant time once its children's are known and a whole tree is fingerprinted in linear time.
+ */
+public final class Fingerprint
+{
+    //Abstract Function
+    // Maps (high,low) to the 128-bit number high*2^64+low.
+    //Representation Invariant
+    // true
+    //Safety from Rep Exposure
+    // Fields are private final primitives.
+    //Thread Safety
+    // Immutable.
+    private static final long SCALAR=0x1f83d9abfb41bd6bL;
+    private static final long VARIABLE=0x5be0cd19137e2179L;
+    private static final long SUM=0x9b05688c2b3e6c1fL;
+    private static final long PRODUCT=0x510e527fade682d1L;
+
+    private final long high;
+    private final long low;
+
+    Fingerprint(long high,long low)
+    {
+        this.high=high;
+        this.low=low;
+    }
+
+    /**
+     * @return the upper 64 bits of this fingerprint.
+     */
+    public long getHigh()
+    {
+        return high;
+    }
+    /**
+     * @return the lower 64 bits of this fingerprint.
+     */
+    public long getLow()
+    {
+        return low;
+    }
+
+    @Override
+    public boolean equals(Object thatObject)
+    {
+        if (!(thatObject instanceof Fingerprint)) return false;
+        Fingerprint thatFingerprint=(Fingerprint)thatObject;
+        return high==thatFingerprint.high && low==thatFingerprint.low;
+    }
+    @Override
+    public int hashCode()
+    {
+        return (int)(low^(low>>>32));
+    }
+    @Override
+    public String toString()
+    {
+        return String.format("%016x%016x", high, low);
+    }
+
+    static Fingerprint ofScalar(long bits)
+    {
+        return new Fingerprint(mix(SCALAR^bits), mix(mix(bits)+SCALAR));
+    }
+    static Fingerprint ofVariable(String name)
+    {
+        return ofText(VARIABLE, name);
+    }
+    private static Fingerprint ofText(long seed,String name)
+    {
+        long h=seed;
+        long l=~seed;
+        for (int x=0;x<name.length();x++)
+        {
+            h=mix(h+name.charAt(x));
+            l=(l^name.charAt(x))*0x100000001b3L;
+        }
+        return new Fingerprint(mix(h), mix(l+name.length()));
+    }
+
+    /**
+     * @param expression1 left operand of a sum.
+     * @param expression2 right operand of a sum.
+     * @return the multiset total of all operands of the sum chain made of these two operands.
+     */
+    static Fingerprint sumTerms(Expression expression1,Expression expression2)
+    {
+        return add(termsOf(expression1, true), termsOf(expression2, true));
+    }
+    /**
+     * @param expression1 left operand of a product.
+     * @param expression2 right operand of a product.
+     * @return the multiset total of all operands of the product chain made of these two operands.
+     */
+    static Fingerprint productTerms(Expression expression1,Expression expression2)
+    {
+        return add(termsOf(expression1, false), termsOf(expression2, false));
+    }
+    /**
+     * @param terms a total made by sumTerms.
+     * @return the fingerprint of a sum whose flattened operands have that total.
+     */
+    static Fingerprint ofSum(Fingerprint terms)
+    {
+        return new Fingerprint(mix(terms.high^SUM), mix(terms.low+SUM));
+    }
+    /**
+     * @param terms a total made by productTerms.
+     * @return the fingerprint of a product whose flattened operands have that total.
+     */
+    static Fingerprint ofProduct(Fingerprint terms)
+    {
+        return new Fingerprint(mix(terms.high^PRODUCT), mix(terms.low+PRODUCT));
+    }
+
+    /**
+     * Fingerprints every sum and product under root that doesn't have a fingerprint yet, children before
+     * parents, using an explicit stack so that deep chains don't overflow the call stack.
+     */
+    static void compute(Expression root)
+    {
+        Deque<Expression> stack= new ArrayDeque<>();
+        stack.push(root);
+        while (!stack.isEmpty())
+        {
+            Expression node=LazyDerivative.unwrap(stack.peek());
+            boolean ready=true;
+            if (!isComputed(node))
+            {
+                for (Expression child: node.getElements())
+                {
+                    child=LazyDerivative.unwrap(child);
+                    if (!isComputed(child))
+                    {
+                        stack.push(child);
+                        ready=false;
+                    }
+                }
+            }
+            if (ready)
+            {
+                stack.pop();
+                if (node instanceof Sum && !((Sum)node).hasFingerprint())
+                {
+                    ((Sum)node).computeFingerprint();
+                }
+                else if (node instanceof Product && !((Product)node).hasFingerprint())
+                {
+                    ((Product)node).computeFingerprint();
+                }
+            }
+        }
+    }
+
+    private static boolean isComputed(Expression node)
+    {
+        if (node instanceof Sum)
+        {
+            return ((Sum)node).hasFingerprint();
+        }
+        if (node instanceof Product)
+        {
+            return ((Product)node).hasFingerprint();
+        }
+        return true;
+    }
+
+    // A child of the same kind contributes its whole chain; any other child is a single operand.
+    private static Fingerprint termsOf(Expression expression,boolean sum)
+    {
+        expression=LazyDerivative.unwrap(expression);
+        if (sum && expression instanceof Sum)
+        {
+            return ((Sum)expression).terms();
+        }
+        if (!sum && expression instanceof Product)
+        {
+            return ((Product)expression).terms();
+        }
+        Fingerprint operand=expression.fingerprint();
+        return new Fingerprint(mix(operand.high+operand.low*0x9e3779b97f4a7c15L), mix(operand.low^Long.rotateLeft(operand.high, 29)));
+    }
+
+    private static Fingerprint add(Fingerprint terms1,Fingerprint terms2)
+    {
+        return new Fingerprint(terms1.high+terms2.high, terms1.low+terms2.low);
+    }
+
+    // SplitMix64 finalizer.
+    private static long mix(long z)
+    {
+        z=(z^(z>>>30))*0xbf58476d1ce4e5b9L;
+        z=(z^(z>>>27))*0x94d049bb133111ebL;
+        return z^(z>>>31);
+    }
+}
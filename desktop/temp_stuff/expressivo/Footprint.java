@@ -0,0 +1,497 @@
+package expressivo;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * How much memory an expression costs, and how much of it is spent on repeated subexpressions.
+ *
+ * <p>An expression is a DAG of node objects: the same object may be an operand in several places. Its tree
+ * size counts every place; its distinct nodes count every object once. Two objects may also be separate
+ * copies of the same structure; the duplicates histogram lists the structures that occur most often,
+ * weighted by their size, which are the ones worth interning or caching.
+ *
+ * <p>Byte counts are estimates for a 64-bit JVM with compressed references (12-byte headers, 4-byte
+ * references, 8-byte alignment), counting every distinct object reachable from the expression once: the
+ * nodes, the ArrayList each Sum and Product keeps of its operands (with its default 10-slot array), the
+ * fingerprints computed so far, and variable names. A lazy derivative is measured as it is, a node of its
+ * own whose operands are the expression it differentiates and the variable it differentiates by, so
+ * measuring an expression never expands a derivative; the levels it has already built are not counted.
+ */
+public final class Footprint
+{
+    //Abstract Function
+    // Maps the fields to the footprint of one expression: treeSize nodes as a tree, distinctNodes objects,
+    // distinctStructures different structures, depth levels, estimatedBytes of which elementListBytes in
+    // the operand lists, and the largest duplicated structures in topDuplicates.
+    //Representation Invariant
+    // distinctStructures <= distinctNodes <= treeSize, depth < treeSize, elementListBytes <= estimatedBytes.
+    //Safety from Rep Exposure
+    // topDuplicates is an unmodifiable list of immutable entries; everything else is primitive.
+    //Thread Safety
+    // Immutable.
+    private static final int DEFAULT_TOP=10;
+    private static final int PREVIEW_LENGTH=60;
+    private static final long HEADER=12;
+    private static final long REFERENCE=4;
+    // Sum and Product: elements, expression1, expression2, terms, fingerprint.
+    private static final long OPERATION_BYTES=align(HEADER+5*REFERENCE);
+    // Scalar: scalar (a double), exact, value, fingerprint.
+    private static final long SCALAR_BYTES=align(HEADER+8+3*REFERENCE);
+    // Variable: variable, fingerprint.
+    private static final long VARIABLE_BYTES=align(HEADER+2*REFERENCE);
+    // LazyDerivative: source, withRespectTo, expanded.
+    private static final long LAZY_BYTES=align(HEADER+3*REFERENCE);
+    // ArrayList: size, modCount, elementData; and its Object[10] after the first add.
+    private static final long LIST_BYTES=align(HEADER+4+4+REFERENCE)+align(HEADER+4+10*REFERENCE);
+    // Fingerprint: high, low.
+    private static final long FINGERPRINT_BYTES=align(HEADER+16);
+
+    private final long treeSize;
+    private final int distinctNodes;
+    private final int distinctStructures;
+    private final int duplicatedStructures;
+    private final long depth;
+    private final long estimatedBytes;
+    private final long elementListBytes;
+    private final List<Duplicate> topDuplicates;
+
+    private void checkRep(){
+        assert distinctStructures<=distinctNodes && distinctNodes<=treeSize;
+        assert depth<treeSize;
+        assert elementListBytes<=estimatedBytes;
+    }
+
+    /**
+     * @param expression any expression.
+     * @return its footprint, with the 10 largest duplicated structures.
+     */
+    public static Footprint of(Expression expression)
+    {
+        return of(expression, DEFAULT_TOP);
+    }
+
+    /**
+     * Analyzes expression in one iterative walk over its distinct nodes, so it works on arbitrarily deep
+     * and heavily shared expressions.
+     * @param expression any expression.
+     * @param topDuplicates how many duplicated structures to report, >= 0.
+     * @return its footprint.
+     */
+    public static Footprint of(Expression expression,int topDuplicates)
+    {
+        // Post-order over distinct objects: each node after its operands.
+        List<Expression> order= new ArrayList<>();
+        Map<Expression,Integer> index= new IdentityHashMap<>();
+        Deque<Expression> pending= new ArrayDeque<>();
+        pending.push(expression);
+        while (!pending.isEmpty())
+        {
+            Expression node=pending.peek();
+            if (index.containsKey(node))
+            {
+                pending.pop();
+                continue;
+            }
+            boolean ready=true;
+            List<Expression> elements=operands(node);
+            if (elements!=null)
+            {
+                for (int x=1;x>=0;x--)
+                {
+                    Expression operand=elements.get(x);
+                    if (!index.containsKey(operand))
+                    {
+                        pending.push(operand);
+                        ready=false;
+                    }
+                }
+            }
+            if (ready)
+            {
+                pending.pop();
+                index.put(node, order.size());
+                order.add(node);
+            }
+        }
+
+        int count=order.size();
+        int[] left= new int[count];
+        int[] right= new int[count];
+        int[] structure= new int[count];
+        long[] sizes= new long[count];
+        long[] depths= new long[count];
+        Map<List<Object>,Integer> structures= new HashMap<>();
+        Map<String,Boolean> names= new IdentityHashMap<>();
+        long bytes=0;
+        long listBytes=0;
+        for (int x=0;x<count;x++)
+        {
+            Expression node=order.get(x);
+            List<Object> shape;
+            List<Expression> elements=operands(node);
+            if (elements!=null)
+            {
+                left[x]=index.get(elements.get(0));
+                right[x]=index.get(elements.get(1));
+                sizes[x]=add(1, add(sizes[left[x]], sizes[right[x]]));
+                depths[x]=1+Math.max(depths[left[x]], depths[right[x]]);
+                String kind=node instanceof Sum ? "+" : node instanceof Product ? "*" : "d";
+                shape=Arrays.asList(kind, structure[left[x]], structure[right[x]]);
+                if (node instanceof LazyDerivative)
+                {
+                    bytes+=LAZY_BYTES;
+                }
+                else
+                {
+                    bytes+=OPERATION_BYTES+LIST_BYTES;
+                    listBytes+=LIST_BYTES;
+                    if (node instanceof Sum ? ((Sum)node).hasFingerprint() : ((Product)node).hasFingerprint())
+                    {
+                        bytes+=2*FINGERPRINT_BYTES;
+                    }
+                }
+            }
+            else
+            {
+                left[x]=-1;
+                right[x]=-1;
+                sizes[x]=1;
+                if (node instanceof Scalar)
+                {
+                    shape=Collections.<Object>singletonList(node);
+                    bytes+=SCALAR_BYTES;
+                }
+                else
+                {
+                    String name=node.toString();
+                    shape=Collections.<Object>singletonList(name);
+                    bytes+=VARIABLE_BYTES;
+                    if (names.put(name, true)==null)
+                    {
+                        bytes+=align(HEADER+4+4+REFERENCE)+align(16+name.length());
+                    }
+                }
+            }
+            Integer known=structures.putIfAbsent(shape, structures.size());
+            structure[x]=known==null ? structures.size()-1 : known;
+        }
+
+        // Occurrences as a tree: parents come after their operands in order, so walk it backwards.
+        long[] occurrences= new long[count];
+        occurrences[count-1]=1;
+        for (int x=count-1;x>=0;x--)
+        {
+            if (left[x]>=0)
+            {
+                occurrences[left[x]]=add(occurrences[left[x]], occurrences[x]);
+                occurrences[right[x]]=add(occurrences[right[x]], occurrences[x]);
+            }
+        }
+        int[] objects= new int[structures.size()];
+        long[] structureOccurrences= new long[structures.size()];
+        int[] example= new int[structures.size()];
+        for (int x=0;x<count;x++)
+        {
+            objects[structure[x]]++;
+            structureOccurrences[structure[x]]=add(structureOccurrences[structure[x]], occurrences[x]);
+            example[structure[x]]=x;
+        }
+        List<Integer> duplicated= new ArrayList<>();
+        for (int s=0;s<structures.size();s++)
+        {
+            if (structureOccurrences[s]>1)
+            {
+                duplicated.add(s);
+            }
+        }
+        // Largest first: the tree nodes that one shared copy would stand in for.
+        duplicated.sort((s1, s2) -> Double.compare((structureOccurrences[s2]-1)*(double)sizes[example[s2]],
+                (structureOccurrences[s1]-1)*(double)sizes[example[s1]]));
+        List<Duplicate> top= new ArrayList<>();
+        for (int s: duplicated.subList(0, Math.min(topDuplicates, duplicated.size())))
+        {
+            top.add(new Duplicate(preview(order.get(example[s])), structureOccurrences[s], objects[s],
+                    sizes[example[s]]));
+        }
+        return new Footprint(sizes[count-1], count, structures.size(), duplicated.size(), depths[count-1], bytes,
+                listBytes, top);
+    }
+
+    private Footprint(long treeSize,int distinctNodes,int distinctStructures,int duplicatedStructures,long depth,
+            long estimatedBytes,long elementListBytes,List<Duplicate> topDuplicates)
+    {
+        this.treeSize=treeSize;
+        this.distinctNodes=distinctNodes;
+        this.distinctStructures=distinctStructures;
+        this.duplicatedStructures=duplicatedStructures;
+        this.depth=depth;
+        this.estimatedBytes=estimatedBytes;
+        this.elementListBytes=elementListBytes;
+        this.topDuplicates=Collections.unmodifiableList(topDuplicates);
+        checkRep();
+    }
+
+    /**
+     * @return the number of nodes of the expression as a tree, counting a shared node once per place;
+     *         Long.MAX_VALUE if there are more.
+     */
+    public long getTreeSize()
+    {
+        return treeSize;
+    }
+
+    /**
+     * @return the number of distinct node objects.
+     */
+    public int getDistinctNodes()
+    {
+        return distinctNodes;
+    }
+
+    /**
+     * @return the number of structurally different subexpressions: the distinct nodes there would be if
+     *         every equal subexpression were one shared object.
+     */
+    public int getDistinctStructures()
+    {
+        return distinctStructures;
+    }
+
+    /**
+     * @return the number of structures that occur more than once in the tree.
+     */
+    public int getDuplicatedStructures()
+    {
+        return duplicatedStructures;
+    }
+
+    /**
+     * @return the number of edges on the longest path from the root to a leaf.
+     */
+    public long getDepth()
+    {
+        return depth;
+    }
+
+    /**
+     * @return the estimated bytes retained by the expression.
+     */
+    public long getEstimatedBytes()
+    {
+        return estimatedBytes;
+    }
+
+    /**
+     * @return the part of getEstimatedBytes() taken by the operand lists of sums and products.
+     */
+    public long getElementListBytes()
+    {
+        return elementListBytes;
+    }
+
+    /**
+     * @return tree size per distinct node: 1 if nothing is shared, higher the more the expression reuses
+     *         objects.
+     */
+    public double getSharingRatio()
+    {
+        return (double)treeSize/distinctNodes;
+    }
+
+    /**
+     * @return the fraction of node objects that interning equal subexpressions would remove: 0 if every
+     *         structure is already a single object.
+     */
+    public double getInterningSavings()
+    {
+        return 1-(double)distinctStructures/distinctNodes;
+    }
+
+    /**
+     * @return the duplicated structures, most tree nodes first.
+     */
+    public List<Duplicate> getTopDuplicates()
+    {
+        return topDuplicates;
+    }
+
+    /**
+     * @return a multi-line report of every measurement and the duplicates histogram.
+     */
+    @Override
+    public String toString()
+    {
+        StringBuilder result= new StringBuilder();
+        result.append(String.format("tree size %d, distinct nodes %d, distinct structures %d, depth %d%n",
+                treeSize, distinctNodes, distinctStructures, depth));
+        result.append(String.format("sharing ratio %.2f, interning would save %.0f%%%n",
+                getSharingRatio(), 100*getInterningSavings()));
+        result.append(String.format("estimated %d bytes, %d of them in element lists%n",
+                estimatedBytes, elementListBytes));
+        result.append(String.format("%d duplicated structures", duplicatedStructures));
+        for (Duplicate duplicate: topDuplicates)
+        {
+            result.append(String.format("%n  %s", duplicate));
+        }
+        return result.toString();
+    }
+
+    // The start of the expression's text, written without recursion so that deep expressions are fine.
+    private static String preview(Expression expression)
+    {
+        StringBuilder result= new StringBuilder();
+        Deque<Object> pending= new ArrayDeque<>();
+        pending.push(expression);
+        while (!pending.isEmpty() && result.length()<=PREVIEW_LENGTH)
+        {
+            Object item=pending.pop();
+            if (item instanceof String)
+            {
+                result.append(item);
+                continue;
+            }
+            Expression node=(Expression)item;
+            if (node instanceof LazyDerivative)
+            {
+                pending.push(")/d"+((LazyDerivative)node).getWithRespectTo());
+                pending.push(((LazyDerivative)node).getSource());
+                pending.push("d(");
+            }
+            else if (node instanceof Sum)
+            {
+                List<Expression> elements=node.getElements();
+                pending.push(elements.get(1));
+                pending.push("+");
+                pending.push(elements.get(0));
+            }
+            else if (node instanceof Product)
+            {
+                List<Expression> elements=node.getElements();
+                pending.push(")");
+                pending.push(elements.get(1));
+                pending.push(")*(");
+                pending.push(elements.get(0));
+                pending.push("(");
+            }
+            else
+            {
+                result.append(node);
+            }
+        }
+        if (result.length()>PREVIEW_LENGTH || !pending.isEmpty())
+        {
+            result.setLength(Math.min(result.length(), PREVIEW_LENGTH));
+            result.append("...");
+        }
+        return result.toString();
+    }
+
+    // The two operands of a sum or product, the source and variable of a lazy derivative (which stays
+    // unexpanded), or null for a leaf.
+    private static List<Expression> operands(Expression node)
+    {
+        if (node instanceof LazyDerivative)
+        {
+            LazyDerivative derivative=(LazyDerivative)node;
+            return Arrays.asList(derivative.getSource(), derivative.getWithRespectTo());
+        }
+        if (node instanceof Sum || node instanceof Product)
+        {
+            return node.getElements();
+        }
+        return null;
+    }
+
+    // Tree sizes grow exponentially with sharing; they stop at Long.MAX_VALUE instead of wrapping.
+    private static long add(long a,long b)
+    {
+        long sum=a+b;
+        return sum<0 ? Long.MAX_VALUE : sum;
+    }
+
+    private static long align(long bytes)
+    {
+        return (bytes+7)&~7L;
+    }
+
+    /**
+     * A structure that occurs more than once in an expression.
+     */
+    public static final class Duplicate
+    {
+        private final String preview;
+        private final long occurrences;
+        private final int objects;
+        private final long treeSize;
+
+        private Duplicate(String preview,long occurrences,int objects,long treeSize)
+        {
+            this.preview=preview;
+            this.occurrences=occurrences;
+            this.objects=objects;
+            this.treeSize=treeSize;
+        }
+
+        /**
+         * @return the start of the structure's text.
+         */
+        public String getPreview()
+        {
+            return preview;
+        }
+
+        /**
+         * @return how many times the structure occurs in the expression as a tree.
+         */
+        public long getOccurrences()
+        {
+            return occurrences;
+        }
+
+        /**
+         * @return how many distinct objects have the structure; 1 if it is already fully shared.
+         */
+        public int getObjects()
+        {
+            return objects;
+        }
+
+        /**
+         * @return the tree size of the structure.
+         */
+        public long getTreeSize()
+        {
+            return treeSize;
+        }
+
+        @Override
+        public boolean equals(Object thatObject)
+        {
+            if (!(thatObject instanceof Duplicate)) return false;
+            Duplicate thatDuplicate=(Duplicate)thatObject;
+            return preview.equals(thatDuplicate.preview) && occurrences==thatDuplicate.occurrences
+                    && objects==thatDuplicate.objects && treeSize==thatDuplicate.treeSize;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hash(preview, occurrences, objects, treeSize);
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("%6d x %-8d (%d objects) %s", occurrences, treeSize, objects, preview);
+        }
+    }
+}
@@ -0,0 +1,499 @@
+package expressivo;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The matrix of second partial derivatives of an expression by a list of variables, as a sparse symmetric
+ * matrix of Expressions, with a compiled evaluator for numeric Hessians.
+ *
+ * <p>Only the upper triangle is computed, since d/dx d/dy f equals d/dy d/dx f. The gradient is computed
+ * once and every second derivative is built from it. All derivatives are built as one DAG: equal
+ * subexpressions (by Fingerprint) are the same object, each node is differentiated by a variable at most
+ * once, and derivatives that are structurally zero are dropped rather than stored, so x*0 terms never
+ * appear. The entries are therefore equal to the derivatives differentiate would give, but usually much
+ * smaller. The evaluator computes each shared node once per evaluation.
+ */
+public final class Hessian
+{
+    //Abstract Function
+    // Maps (variables, upper) to the symmetric matrix H with H[i][j] = H[j][i] = upper.get(i).get(j) for
+    // i <= j where that entry exists, and 0 elsewhere. gradient.get(i) is the first derivative by
+    // variables.get(i). The evaluator runs code, triples (opcode, a, b) each writing one workspace slot:
+    //   CONSTANT k sets constants[k], LOAD v sets the value of inputs.get(v), ADD and MULTIPLY combine
+    //   the slots a and b.
+    // Entry number e, at (rows[e], columns[e]), has its value in slot slots[e] afterwards.
+    //Representation Invariant
+    // inputs starts with variables. upper.size() == gradient.size() == variables.size(), and every key of
+    // upper.get(i) is in [i, variables.size()). No stored entry is the scalar 0. Every ADD and MULTIPLY
+    // reads slots written by earlier instructions. rows, columns and slots have one element per entry.
+    //Safety from Rep Exposure
+    // variables, inputs and gradient are returned as unmodifiable lists; upper and the program are never
+    // returned. Expressions are immutable.
+    //Thread Safety
+    // Immutable. evaluate(values) uses a workspace of its own; evaluate(values, workspace, result) is safe
+    // as long as callers don't share a workspace or result between threads.
+    private static final int CONSTANT=0;
+    private static final int LOAD=1;
+    private static final int ADD=2;
+    private static final int MULTIPLY=3;
+
+    private final List<String> variables;
+    private final List<String> inputs;
+    private final List<Expression> gradient;
+    private final List<Map<Integer,Expression>> upper;
+    private final Expression zero;
+    private final int[] code;
+    private final double[] constants;
+    private final int[] rows;
+    private final int[] columns;
+    private final int[] slots;
+
+    private void checkRep(){
+        assert upper.size()==variables.size() && gradient.size()==variables.size();
+        for (int x=0;x<upper.size();x++)
+        {
+            for (int column: upper.get(x).keySet())
+            {
+                assert column>=x && column<variables.size();
+            }
+        }
+        assert rows.length==slots.length && columns.length==slots.length;
+    }
+
+    /**
+     * @param expression the expression to take second derivatives of.
+     * @param variables the variables, in the order of the rows and columns of the matrix. Must all be
+     *        variables as made by Expression.makeVariable, without repetition.
+     * @throws IllegalArgumentException if an element of variables is not a variable or is repeated.
+     */
+    public Hessian(Expression expression,List<Expression> variables)
+    {
+        List<String> names= new ArrayList<>();
+        for (Expression variable: variables)
+        {
+            String name=nameOf(variable);
+            if (names.contains(name))
+            {
+                throw new IllegalArgumentException("variable "+name+" is repeated");
+            }
+            names.add(name);
+        }
+        this.variables=Collections.unmodifiableList(names);
+        Map<Fingerprint,Expression> interned= new HashMap<>();
+        this.zero=intern(interned, Expression.makeScalar(0));
+        Expression one=intern(interned, Expression.makeScalar(1));
+        Expression root=share(interned, expression);
+
+        List<Expression> firsts= new ArrayList<>();
+        for (String name: names)
+        {
+            firsts.add(derive(interned, one, root, name, new IdentityHashMap<>()));
+        }
+        this.gradient=Collections.unmodifiableList(firsts);
+
+        this.upper= new ArrayList<>();
+        for (int x=0;x<names.size();x++)
+        {
+            upper.add(new HashMap<>());
+        }
+        // Column by column, so that all entries of a column share one memo of derivatives by its variable.
+        for (int column=0;column<names.size();column++)
+        {
+            Map<Expression,Expression> memo= new IdentityHashMap<>();
+            for (int row=0;row<=column;row++)
+            {
+                if (firsts.get(row)!=zero)
+                {
+                    Expression entry=derive(interned, one, firsts.get(row), names.get(column), memo);
+                    if (entry!=zero)
+                    {
+                        upper.get(row).put(column, entry);
+                    }
+                }
+            }
+        }
+
+        // Compile every entry into one program over the shared DAG.
+        List<Integer> entryRows= new ArrayList<>();
+        List<Integer> entryColumns= new ArrayList<>();
+        List<Expression> entries= new ArrayList<>();
+        for (int row=0;row<names.size();row++)
+        {
+            for (Map.Entry<Integer,Expression> entry: upper.get(row).entrySet())
+            {
+                entryRows.add(row);
+                entryColumns.add(entry.getKey());
+                entries.add(entry.getValue());
+            }
+        }
+        List<String> parameters= new ArrayList<>(names);
+        for (String name: expression.variables())
+        {
+            if (!names.contains(name))
+            {
+                parameters.add(name);
+            }
+        }
+        this.inputs=Collections.unmodifiableList(parameters);
+        Map<String,Integer> inputSlots= new HashMap<>();
+        for (int x=0;x<parameters.size();x++)
+        {
+            inputSlots.put(parameters.get(x), x);
+        }
+        Map<Expression,Integer> slotOf= new IdentityHashMap<>();
+        List<Integer> program= new ArrayList<>();
+        List<Double> pool= new ArrayList<>();
+        this.rows= new int[entries.size()];
+        this.columns= new int[entries.size()];
+        this.slots= new int[entries.size()];
+        for (int x=0;x<entries.size();x++)
+        {
+            rows[x]=entryRows.get(x);
+            columns[x]=entryColumns.get(x);
+            slots[x]=emit(entries.get(x), inputSlots, slotOf, program, pool);
+        }
+        this.code= new int[program.size()];
+        for (int x=0;x<code.length;x++)
+        {
+            code[x]=program.get(x);
+        }
+        this.constants= new double[pool.size()];
+        for (int x=0;x<constants.length;x++)
+        {
+            constants[x]=pool.get(x);
+        }
+        checkRep();
+    }
+
+    /**
+     * @return the names of the variables, in the order of the rows and columns.
+     */
+    public List<String> getVariables()
+    {
+        return variables;
+    }
+
+    /**
+     * @return the inputs of evaluate: the variables of getVariables(), followed by the other variables of
+     *         the expression (which the entries may depend on too), sorted by name.
+     */
+    public List<String> getInputs()
+    {
+        return inputs;
+    }
+
+    /**
+     * @return the first derivatives by each variable, in the order of getVariables().
+     */
+    public List<Expression> getGradient()
+    {
+        return gradient;
+    }
+
+    /**
+     * @param row a row, in [0, getVariables().size()).
+     * @param column a column, in [0, getVariables().size()).
+     * @return the second derivative by the variables of row and column; the scalar 0 if it is structurally
+     *         zero.
+     * @throws IndexOutOfBoundsException if row or column is out of range.
+     */
+    public Expression get(int row,int column)
+    {
+        if (row<0 || column<0 || row>=variables.size() || column>=variables.size())
+        {
+            throw new IndexOutOfBoundsException("("+row+", "+column+") in a "+variables.size()+" square matrix");
+        }
+        Expression entry=row<=column ? upper.get(row).get(column) : upper.get(column).get(row);
+        return entry==null ? zero : entry;
+    }
+
+    /**
+     * @return the number of entries in the upper triangle, diagonal included, that are not structurally
+     *         zero.
+     */
+    public int nonZeros()
+    {
+        return slots.length;
+    }
+
+    /**
+     * @return the length a workspace passed to evaluate(values, workspace, result) must have at least.
+     */
+    public int workspaceSize()
+    {
+        return code.length/3;
+    }
+
+    /**
+     * @param values the value of each input, in the order of getInputs().
+     * @return the Hessian at values, a new n-by-n array for n variables.
+     */
+    public double[][] evaluate(double... values)
+    {
+        double[][] result= new double[variables.size()][variables.size()];
+        evaluate(values, new double[workspaceSize()], result);
+        return result;
+    }
+
+    /**
+     * Evaluates without allocating anything, for use in tight loops.
+     * @param values the value of each input, in the order of getInputs().
+     * @param workspace scratch space of at least workspaceSize() entries; its contents are overwritten.
+     * @param result an n-by-n array for n variables; every entry is overwritten with the Hessian at values.
+     */
+    public void evaluate(double[] values,double[] workspace,double[][] result)
+    {
+        for (int pc=0, slot=0;pc<code.length;pc+=3, slot++)
+        {
+            switch (code[pc])
+            {
+                case CONSTANT:
+                    workspace[slot]=constants[code[pc+1]];
+                    break;
+                case LOAD:
+                    workspace[slot]=values[code[pc+1]];
+                    break;
+                case ADD:
+                    workspace[slot]=workspace[code[pc+1]]+workspace[code[pc+2]];
+                    break;
+                default:
+                    workspace[slot]=workspace[code[pc+1]]*workspace[code[pc+2]];
+                    break;
+            }
+        }
+        for (double[] row: result)
+        {
+            Arrays.fill(row, 0);
+        }
+        for (int x=0;x<slots.length;x++)
+        {
+            result[rows[x]][columns[x]]=workspace[slots[x]];
+            result[columns[x]][rows[x]]=workspace[slots[x]];
+        }
+    }
+
+    /**
+     * @param environment maps variables to values; must contain every input of getInputs().
+     * @return the Hessian in environment.
+     * @throws IllegalArgumentException if environment lacks one of the inputs.
+     */
+    public double[][] evaluate(Map<String,Double> environment)
+    {
+        double[] values= new double[inputs.size()];
+        for (int x=0;x<values.length;x++)
+        {
+            Double value=environment.get(inputs.get(x));
+            if (value==null)
+            {
+                throw new IllegalArgumentException("no value for "+inputs.get(x));
+            }
+            values[x]=value;
+        }
+        return evaluate(values);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "Hessian over "+variables+" with "+nonZeros()+" nonzero entries in the upper triangle";
+    }
+
+    // The shared node equal to node, whose operands must be shared already.
+    private static Expression intern(Map<Fingerprint,Expression> interned,Expression node)
+    {
+        Expression found=interned.putIfAbsent(node.fingerprint(), node);
+        return found==null ? node : found;
+    }
+
+    // Rebuilds expression bottom-up so that equal subexpressions become one shared node.
+    private static Expression share(Map<Fingerprint,Expression> interned,Expression expression)
+    {
+        Map<Expression,Expression> done= new IdentityHashMap<>();
+        Deque<Expression> pending= new ArrayDeque<>();
+        pending.push(expression);
+        while (!pending.isEmpty())
+        {
+            Expression node=pending.peek();
+            if (done.containsKey(node))
+            {
+                pending.pop();
+                continue;
+            }
+            Expression unwrapped=LazyDerivative.unwrap(node);
+            if (!(unwrapped instanceof Sum || unwrapped instanceof Product))
+            {
+                pending.pop();
+                done.put(node, intern(interned, unwrapped));
+                continue;
+            }
+            List<Expression> elements=unwrapped.getElements();
+            Expression left=done.get(elements.get(0));
+            Expression right=done.get(elements.get(1));
+            if (left==null || right==null)
+            {
+                pending.push(elements.get(1));
+                pending.push(elements.get(0));
+                continue;
+            }
+            pending.pop();
+            done.put(node, intern(interned, combine(unwrapped instanceof Sum, left, right)));
+        }
+        return done.get(expression);
+    }
+
+    private static Expression combine(boolean sum,Expression left,Expression right)
+    {
+        return sum ? Expression.makeSum(left, right) : Expression.makeProduct(left, right);
+    }
+
+    // Differentiates a shared DAG by name, at most once per node: memo maps each node already visited to
+    // its derivative. Zero derivatives are the shared scalar zero and are left out of sums and products,
+    // and factors of one are dropped.
+    private Expression derive(Map<Fingerprint,Expression> interned,Expression one,Expression root,String name,
+            Map<Expression,Expression> memo)
+    {
+        Deque<Expression> pending= new ArrayDeque<>();
+        pending.push(root);
+        while (!pending.isEmpty())
+        {
+            Expression node=pending.peek();
+            if (memo.containsKey(node))
+            {
+                pending.pop();
+                continue;
+            }
+            if (node instanceof Scalar)
+            {
+                pending.pop();
+                memo.put(node, zero);
+                continue;
+            }
+            if (node instanceof Variable)
+            {
+                pending.pop();
+                memo.put(node, node.toString().equals(name) ? one : zero);
+                continue;
+            }
+            List<Expression> elements=node.getElements();
+            Expression left=elements.get(0);
+            Expression right=elements.get(1);
+            Expression leftDerivative=memo.get(left);
+            Expression rightDerivative=memo.get(right);
+            if (leftDerivative==null || rightDerivative==null)
+            {
+                pending.push(right);
+                pending.push(left);
+                continue;
+            }
+            pending.pop();
+            Expression derivative;
+            if (node instanceof Sum)
+            {
+                derivative=add(interned, leftDerivative, rightDerivative);
+            }
+            else
+            {
+                derivative=add(interned, multiply(interned, one, leftDerivative, right),
+                        multiply(interned, one, left, rightDerivative));
+            }
+            memo.put(node, derivative);
+        }
+        return memo.get(root);
+    }
+
+    private Expression add(Map<Fingerprint,Expression> interned,Expression left,Expression right)
+    {
+        if (left==zero)
+        {
+            return right;
+        }
+        if (right==zero)
+        {
+            return left;
+        }
+        return intern(interned, Expression.makeSum(left, right));
+    }
+
+    private Expression multiply(Map<Fingerprint,Expression> interned,Expression one,Expression left,
+            Expression right)
+    {
+        if (left==zero || right==zero)
+        {
+            return zero;
+        }
+        if (left==one)
+        {
+            return right;
+        }
+        if (right==one)
+        {
+            return left;
+        }
+        return intern(interned, Expression.makeProduct(left, right));
+    }
+
+    // Appends instructions computing node, and any of its operands not computed yet, and returns its slot.
+    private static int emit(Expression root,Map<String,Integer> inputs,Map<Expression,Integer> slotOf,
+            List<Integer> program,List<Double> pool)
+    {
+        Deque<Expression> pending= new ArrayDeque<>();
+        pending.push(root);
+        while (!pending.isEmpty())
+        {
+            Expression node=pending.peek();
+            if (slotOf.containsKey(node))
+            {
+                pending.pop();
+                continue;
+            }
+            if (node instanceof Sum || node instanceof Product)
+            {
+                List<Expression> elements=node.getElements();
+                Integer left=slotOf.get(elements.get(0));
+                Integer right=slotOf.get(elements.get(1));
+                if (left==null || right==null)
+                {
+                    pending.push(elements.get(1));
+                    pending.push(elements.get(0));
+                    continue;
+                }
+                program.add(node instanceof Sum ? ADD : MULTIPLY);
+                program.add(left);
+                program.add(right);
+            }
+            else if (node instanceof Scalar)
+            {
+                program.add(CONSTANT);
+                program.add(pool.size());
+                program.add(0);
+                pool.add(node.getConstant());
+            }
+            else
+            {
+                program.add(LOAD);
+                program.add(inputs.get(node.toString()));
+                program.add(0);
+            }
+            pending.pop();
+            slotOf.put(node, program.size()/3-1);
+        }
+        return slotOf.get(root);
+    }
+
+    private static String nameOf(Expression variable)
+    {
+        if (!(variable instanceof Variable))
+        {
+            throw new IllegalArgumentException("can only differentiate by a variable: "+variable);
+        }
+        return variable.toString();
+    }
+}
@@ -0,0 +1,176 @@
+package expressivo;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A derivative that has not been computed yet. It only remembers the expression it came from and the
+ * variable it is taken with respect to, and builds one level of the derivative tree the first time that
+ * level is needed. The children of that level are again LazyDerivatives, so evaluating or printing a part
+ * of the derivative never builds the rest of it.
+ */
+class LazyDerivative implements Expression
+{
+    //Abstract Function
+    // Maps (source,withRespectTo) to the derivative d(source)/d(withRespectTo).
+    //Representation Invariant
+    // source and withRespectTo are non-null. Once expanded is set it never changes and is structurally equal
+    // to source.differentiate(withRespectTo).
+    //Safety from Rep Exposure
+    // source and withRespectTo are immutable Expressions and are never returned. expanded is an immutable
+    // Expression whose getElements already returns a defensive copy.
+    //Thread Safety
+    // expanded is a beneficent mutation. Two threads may both expand the same node, but they build equal
+    // trees and the volatile write publishes either one safely, so observers can't tell the difference.
+    private final Expression source;
+    private final Expression withRespectTo;
+    private volatile Expression expanded;
+
+    private void checkRep(){
+        assert source!=null;
+        assert withRespectTo!=null;
+    }
+    /**
+     * @param source the expression to differentiate.
+     * @param withRespectTo the variable to differentiate by.
+     */
+    public LazyDerivative(Expression source,Expression withRespectTo)
+    {
+        this.source=source;
+        this.withRespectTo=withRespectTo;
+        checkRep();
+    }
+
+    /**
+     * Builds (once) the top level of the derivative. Sums and products get LazyDerivative children,
+     * scalars and variables are differentiated directly since their derivatives are leaves.
+     * @return the memoized top level of the derivative.
+     */
+    Expression topLevel()
+    {
+        Expression result=expanded;
+        if (result==null)
+        {
+            Expression node=unwrap(source);
+            if (node instanceof Sum)
+            {
+                List<Expression> elements=node.getElements();
+                result=Expression.makeSum(new LazyDerivative(elements.get(0),withRespectTo),
+                        new LazyDerivative(elements.get(1),withRespectTo));
+            }
+            else if (node instanceof Product)
+            {
+                List<Expression> elements=node.getElements();
+                Expression expression3=Expression.makeProduct(elements.get(0),new LazyDerivative(elements.get(1),withRespectTo));
+                Expression expression4=Expression.makeProduct(elements.get(1),new LazyDerivative(elements.get(0),withRespectTo));
+                result=Expression.makeSum(expression3, expression4);
+            }
+            else
+            {
+                result=node.differentiate(withRespectTo);
+            }
+            expanded=result;
+        }
+        checkRep();
+        return result;
+    }
+
+    /**
+     * @return the expression this derivative is taken of, without expanding anything.
+     */
+    Expression getSource()
+    {
+        return source;
+    }
+
+    /**
+     * @return the variable this derivative is taken by, without expanding anything.
+     */
+    Expression getWithRespectTo()
+    {
+        return withRespectTo;
+    }
+
+    /**
+     * @param expression any expression.
+     * @return expression, or if it is a LazyDerivative, the top level of the derivative it stands for.
+     */
+    static Expression unwrap(Expression expression)
+    {
+        while (expression instanceof LazyDerivative)
+        {
+            expression=((LazyDerivative)expression).topLevel();
+        }
+        return expression;
+    }
+
+    @Override
+    public String toString()
+    {
+        return topLevel().toString();
+    }
+    @Override
+    public List<Expression> getElements()
+    {
+        return topLevel().getElements();
+    }
+    @Override
+    public boolean equals(Object thatObject)
+    {
+        if (this==thatObject) return true;
+        return topLevel().equals(thatObject);
+    }
+    @Override
+    public int hashCode()
+    {
+        return topLevel().hashCode();
+    }
+    @Override
+    public Fingerprint fingerprint()
+    {
+        return topLevel().fingerprint();
+    }
+    @Override
+    public Expression differentiate(Expression withRespectTo)
+    {
+        return new LazyDerivative(this,withRespectTo);
+    }
+    @Override
+    public Expression differentiate(Expression withRespectTo,Budget budget)
+    {
+        // Built eagerly, so that every node of the result is paid for from budget now; a lazy result would
+        // do the same work later with no budget to stop it.
+        budget.step();
+        return topLevel().differentiate(withRespectTo,budget);
+    }
+    @Override
+    public Expression simplify(Map<String,Double> environment)
+    {
+        return topLevel().simplify(environment);
+    }
+    @Override
+    public Expression simplify(Map<String,Double> environment,Budget budget)
+    {
+        budget.step();
+        return topLevel().simplify(environment,budget);
+    }
+    @Override
+    public boolean isConstant()
+    {
+        // The derivative of a constant is 0, no need to expand anything.
+        if (source.isConstant())
+        {
+            return true;
+        }
+        return topLevel().isConstant();
+    }
+    @Override
+    public double getConstant() throws IllegalArgumentException
+    {
+        if (source.isConstant())
+        {
+            return 0;
+        }
+        return topLevel().getConstant();
+    }
+}
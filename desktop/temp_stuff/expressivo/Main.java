@@ -29,7 +29,8 @@ public class Main {
      */
     public static void main(String[] args) throws IOException {
         final BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
-        Optional<String> currentExpression = Optional.empty();
+        final Session session = new Session();
+        Optional<Session.Handle> currentExpression = Optional.empty();
         
         while (true) {
             System.out.print("> ");
@@ -44,16 +45,25 @@ public class Main {
                 
                 if (input.startsWith(DIFFERENTIATE_PREFIX)) {
                     final String variable = parseDifferentiate(input);
-                    output = Commands.differentiate(currentExpression.get(), variable);
-                    currentExpression = Optional.of(output);
+                    final Session.Handle derivative = session.differentiate(currentExpression.get(), variable);
+                    output = session.render(derivative);
+                    session.release(currentExpression.get());
+                    currentExpression = Optional.of(derivative);
                 } else if (input.startsWith(SIMPLIFY_PREFIX)) {
                     final Map<String,Double> environment = parseSimpify(input);
-                    output = Commands.simplify(currentExpression.get(), environment);
+                    final Session.Handle simplified = session.simplify(currentExpression.get(), environment);
+                    output = session.render(simplified);
+                    session.release(simplified);
+                    // ... but don't change currentExpression
+                } else if (input.startsWith(FOOTPRINT_PREFIX)) {
+                    parseFootprint(input);
+                    output = Footprint.of(session.get(currentExpression.get())).toString();
                     // ... but don't change currentExpression
                 } else {
-                    final Expression expression = Expression.parse(input);
-                    output = expression.toString();
-                    currentExpression = Optional.of(output);
+                    final Session.Handle expression = session.parse(input);
+                    output = session.render(expression);
+                    currentExpression.ifPresent(session::release);
+                    currentExpression = Optional.of(expression);
                 }
                 
                 System.out.println(output);
@@ -102,6 +112,15 @@ public class Main {
         return environment;
     }
     
+    private static final String FOOTPRINT_PREFIX = "!footprint";
+    private static final String FOOTPRINT = FOOTPRINT_PREFIX + " *";
+
+    private static void parseFootprint(final String input) {
+        if (!input.matches(FOOTPRINT)) {
+            throw new CommandSyntaxException("usage: !footprint");
+        }
+    }
+    
     public static class CommandSyntaxException extends RuntimeException {
         private static final long serialVersionUID = 1;
         public CommandSyntaxException(String message) {
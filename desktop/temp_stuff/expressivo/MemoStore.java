@@ -0,0 +1,473 @@
+package expressivo;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+
+/**
+ * A persistent memo of differentiate and simplify results, kept in an append-only file so that results
+ * computed by one run are found again by the next one.
+ *
+ * <p>Every result is stored under a SHA-256 digest of (operation, structure of the expression, argument),
+ * where the argument is the variable differentiated by or the environment simplified with. The file is
+ * read through a memory mapping; new results are appended at the end and forced to disk before store
+ * returns, and an in-memory index from digest to file offset is rebuilt by scanning the file when it is
+ * opened. Records appended since the file was last mapped are read with plain reads, and the file is only
+ * mapped again once that tail has grown as large as the mapped part, so a run of stores and lookups
+ * remaps O(log n) times. compact() rewrites the file keeping one record per digest.
+ *
+ * <p>File layout: an 8 byte magic number and a 4 byte format version, followed by records of a 32 byte
+ * digest, a 4 byte length and that many bytes of UTF-8 encoded result. A record cut short by a crash is
+ * dropped when the file is opened.
+ *
+ * <p>A store can be installed process-wide with install(); Commands and Expression.cachedDifferentiate /
+ * Expression.cachedSimplify then check it before computing anything.
+ */
+public final class MemoStore implements Closeable
+{
+    //Abstract Function
+    // Maps the records of file to a function from (operation, expression, argument) digests to results,
+    // where index.get(d) is the offset of the record holding the result for digest d.
+    //Representation Invariant
+    // end is the size of the file and is at least HEADER_SIZE. Every offset in index is the start of a
+    // complete record whose digest is its key. mapped, if not null, maps the file from 0 to at most end;
+    // the rest of the file up to end is read through channel.
+    //Safety from Rep Exposure
+    // No field is ever returned. Results are decoded into new Expressions on every lookup.
+    //Thread Safety
+    // Every method using the rep is synchronized on this. The installed store is a volatile static field.
+    private static final long MAGIC=0x455850524d454d4fL; //"EXPRMEMO"
+    private static final int VERSION=1;
+    private static final int HEADER_SIZE=12;
+    private static final int DIGEST_SIZE=32;
+
+    private static volatile MemoStore installed;
+
+    private final Path path;
+    private FileChannel channel;
+    private MappedByteBuffer mapped;
+    private long end;
+    private final Map<ByteBuffer,Long> index= new HashMap<>();
+
+    private void checkRep(){
+        assert end>=HEADER_SIZE;
+        assert mapped==null || mapped.capacity()<=end;
+    }
+
+    private MemoStore(Path path) throws IOException
+    {
+        this.path=path;
+        this.channel=FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try{
+            if (channel.size()==0)
+            {
+                ByteBuffer header=ByteBuffer.allocate(HEADER_SIZE);
+                header.putLong(MAGIC).putInt(VERSION).flip();
+                writeFully(channel, header, 0);
+                channel.force(true);
+            }
+            this.end=channel.size();
+            scan();
+        } catch(IOException|RuntimeException error)
+        {
+            channel.close();
+            throw error;
+        }
+        checkRep();
+    }
+
+    /**
+     * Opens (or creates) a store.
+     * @param path the file holding the store.
+     * @return a store backed by path.
+     * @throws IOException if the file can't be opened or isn't a store.
+     */
+    public static MemoStore open(Path path) throws IOException
+    {
+        return new MemoStore(path);
+    }
+
+    /**
+     * Makes store the one checked by Commands and by Expression.cachedDifferentiate/cachedSimplify.
+     * @param store the store to use from now on, or null to stop using one.
+     */
+    public static void install(MemoStore store)
+    {
+        installed=store;
+    }
+
+    /**
+     * @return the store installed with install(), if any.
+     */
+    public static Optional<MemoStore> installed()
+    {
+        return Optional.ofNullable(installed);
+    }
+
+    /**
+     * Differentiates expression, using the stored result if there is one and storing it otherwise.
+     * @param expression the expression to differentiate.
+     * @param withRespectTo the variable to differentiate by.
+     * @return a result equal to expression.differentiate(withRespectTo).
+     * @throws UncheckedIOException if the store can't be read or written.
+     */
+    public Expression differentiate(Expression expression,Expression withRespectTo)
+    {
+        String argument=encode(withRespectTo);
+        Optional<Expression> stored=lookup("differentiate", expression, argument);
+        if (stored.isPresent())
+        {
+            return stored.get();
+        }
+        Expression result=expression.differentiate(withRespectTo);
+        store("differentiate", expression, argument, result);
+        return result;
+    }
+
+    /**
+     * Simplifies expression, using the stored result if there is one and storing it otherwise.
+     * @param expression the expression to simplify.
+     * @param environment maps variables to values, as for Expression.simplify.
+     * @return a result equal to expression.simplify(environment).
+     * @throws UncheckedIOException if the store can't be read or written.
+     */
+    public Expression simplify(Expression expression,Map<String,Double> environment)
+    {
+        StringBuilder argument= new StringBuilder();
+        for (Map.Entry<String,Double> entry: new TreeMap<>(environment).entrySet())
+        {
+            argument.append(entry.getKey()).append('=')
+                .append(Long.toHexString(Double.doubleToLongBits(entry.getValue()))).append(';');
+        }
+        Optional<Expression> stored=lookup("simplify", expression, argument.toString());
+        if (stored.isPresent())
+        {
+            return stored.get();
+        }
+        Expression result=expression.simplify(environment);
+        store("simplify", expression, argument.toString(), result);
+        return result;
+    }
+
+    /**
+     * @param operation names the operation, e.g. "differentiate".
+     * @param expression the expression the operation was applied to.
+     * @param argument a canonical text form of the operation's other inputs.
+     * @return the stored result for (operation, expression, argument), if there is one.
+     * @throws UncheckedIOException if the store can't be read.
+     */
+    public synchronized Optional<Expression> lookup(String operation,Expression expression,String argument)
+    {
+        Long offset=index.get(ByteBuffer.wrap(digest(operation, expression, argument)));
+        if (offset==null)
+        {
+            return Optional.empty();
+        }
+        try{
+            int length=view(offset+DIGEST_SIZE, 4).getInt();
+            byte[] value= new byte[length];
+            view(offset+DIGEST_SIZE+4, length).get(value);
+            checkRep();
+            return Optional.of(decode(new String(value, StandardCharsets.UTF_8)));
+        } catch(IOException error)
+        {
+            throw new UncheckedIOException(error);
+        }
+    }
+
+    /**
+     * Appends the result for (operation, expression, argument), unless one is already stored.
+     * @param operation names the operation, e.g. "differentiate".
+     * @param expression the expression the operation was applied to.
+     * @param argument a canonical text form of the operation's other inputs.
+     * @param result the result of the operation.
+     * @throws UncheckedIOException if the store can't be written.
+     */
+    public synchronized void store(String operation,Expression expression,String argument,Expression result)
+    {
+        ByteBuffer key=ByteBuffer.wrap(digest(operation, expression, argument));
+        if (index.containsKey(key))
+        {
+            return;
+        }
+        byte[] value=encode(result).getBytes(StandardCharsets.UTF_8);
+        ByteBuffer record=ByteBuffer.allocate(DIGEST_SIZE+4+value.length);
+        record.put(key.array()).putInt(value.length).put(value).flip();
+        try{
+            writeFully(channel, record, end);
+            channel.force(true);
+        } catch(IOException error)
+        {
+            throw new UncheckedIOException(error);
+        }
+        index.put(key, end);
+        end+=DIGEST_SIZE+4+value.length;
+        checkRep();
+    }
+
+    /**
+     * @return the number of results in the store.
+     */
+    public synchronized int size()
+    {
+        return index.size();
+    }
+
+    /**
+     * Rewrites the file so that it holds exactly one record per stored result, dropping duplicates
+     * appended by earlier runs. The new file replaces the old one atomically where the file system allows.
+     * If that fails, the store goes on using the old file.
+     * @throws IOException if the file can't be rewritten.
+     */
+    public synchronized void compact() throws IOException
+    {
+        Path temporary=path.resolveSibling(path.getFileName()+".compact");
+        Map<ByteBuffer,Long> compacted= new HashMap<>();
+        boolean moved=false;
+        try{
+            try (FileChannel out=FileChannel.open(temporary, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE))
+            {
+                ByteBuffer header=ByteBuffer.allocate(HEADER_SIZE);
+                header.putLong(MAGIC).putInt(VERSION).flip();
+                long position=writeFully(out, header, 0);
+                for (Map.Entry<ByteBuffer,Long> entry: index.entrySet())
+                {
+                    long offset=entry.getValue();
+                    int length=view(offset+DIGEST_SIZE, 4).getInt();
+                    compacted.put(entry.getKey(), position);
+                    position=writeFully(out, view(offset, DIGEST_SIZE+4+length), position);
+                }
+                out.force(true);
+            }
+            // Closed first, since some file systems won't replace a file that is open.
+            mapped=null;
+            channel.close();
+            try{
+                Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch(IOException atomicMoveUnsupported)
+            {
+                Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+            moved=true;
+        } finally
+        {
+            if (!channel.isOpen())
+            {
+                channel=FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                end=channel.size();
+            }
+            if (moved)
+            {
+                index.clear();
+                index.putAll(compacted);
+            }
+            else
+            {
+                Files.deleteIfExists(temporary);
+            }
+        }
+        checkRep();
+    }
+
+    @Override
+    public synchronized void close() throws IOException
+    {
+        if (installed==this)
+        {
+            installed=null;
+        }
+        mapped=null;
+        channel.close();
+    }
+
+    // Builds the index by reading every record, dropping a partial record at the end of the file.
+    private void scan() throws IOException
+    {
+        if (end<HEADER_SIZE)
+        {
+            throw new IOException("not an expression memo store: "+path);
+        }
+        ByteBuffer header=view(0, HEADER_SIZE);
+        if (header.getLong()!=MAGIC || header.getInt()!=VERSION)
+        {
+            throw new IOException("not an expression memo store: "+path);
+        }
+        long offset=HEADER_SIZE;
+        while (offset+DIGEST_SIZE+4<=end)
+        {
+            ByteBuffer record=view(offset, DIGEST_SIZE+4);
+            byte[] key= new byte[DIGEST_SIZE];
+            record.get(key);
+            int length=record.getInt();
+            if (length<0 || offset+DIGEST_SIZE+4+length>end)
+            {
+                break;
+            }
+            index.put(ByteBuffer.wrap(key), offset);
+            offset+=DIGEST_SIZE+4+length;
+        }
+        if (offset!=end)
+        {
+            mapped=null;
+            channel.truncate(offset);
+            end=offset;
+        }
+    }
+
+    // A buffer holding the length bytes of the file at offset. They come from the mapping if it covers
+    // them; otherwise the file is mapped again if the unmapped tail is as large as the mapped part, and
+    // they are read from the channel if it isn't.
+    private ByteBuffer view(long offset,int length) throws IOException
+    {
+        if (offset<0 || length<0 || offset+length>end)
+        {
+            throw new IOException("record out of bounds in memo store: "+path);
+        }
+        if (mapped==null || (offset+length>mapped.capacity() && end-mapped.capacity()>=mapped.capacity()))
+        {
+            if (end>Integer.MAX_VALUE)
+            {
+                throw new IOException("memo store larger than 2GB, compact it or start a new one: "+path);
+            }
+            mapped=channel.map(FileChannel.MapMode.READ_ONLY, 0, end);
+        }
+        if (offset+length<=mapped.capacity())
+        {
+            ByteBuffer view=mapped.duplicate();
+            view.position((int)offset).limit((int)offset+length);
+            return view;
+        }
+        ByteBuffer read=ByteBuffer.allocate(length);
+        while (read.hasRemaining())
+        {
+            if (channel.read(read, offset+read.position())<0)
+            {
+                throw new IOException("memo store truncated while reading: "+path);
+            }
+        }
+        read.flip();
+        return read;
+    }
+
+    private static long writeFully(FileChannel channel,ByteBuffer buffer,long position) throws IOException
+    {
+        while (buffer.hasRemaining())
+        {
+            position+=channel.write(buffer, position);
+        }
+        return position;
+    }
+
+    private static byte[] digest(String operation,Expression expression,String argument)
+    {
+        try{
+            MessageDigest digest=MessageDigest.getInstance("SHA-256");
+            digest.update(operation.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte)0);
+            digest.update(encode(expression).getBytes(StandardCharsets.UTF_8));
+            digest.update((byte)0);
+            digest.update(argument.getBytes(StandardCharsets.UTF_8));
+            return digest.digest();
+        } catch(NoSuchAlgorithmException error)
+        {
+            throw new AssertionError("every JVM provides SHA-256", error);
+        }
+    }
+
+    /**
+     * Writes the structure of an expression in prefix form, one token per node separated by spaces:
+     * "+" for a sum, "*" for a product, "#" followed by the hex bits of a scalar, "%" followed by the
+     * numerator/denominator of an exact scalar, or a variable name.
+     * Unlike toString, it tells a+(b+c) from (a+b)+c.
+     */
+    static String encode(Expression expression)
+    {
+        StringBuilder result= new StringBuilder();
+        Deque<Expression> pending= new ArrayDeque<>();
+        pending.push(expression);
+        while (!pending.isEmpty())
+        {
+            Expression node=LazyDerivative.unwrap(pending.pop());
+            if (result.length()>0)
+            {
+                result.append(' ');
+            }
+            if (node instanceof Sum || node instanceof Product)
+            {
+                List<Expression> elements=node.getElements();
+                result.append(node instanceof Sum ? '+' : '*');
+                pending.push(elements.get(1));
+                pending.push(elements.get(0));
+            }
+            else if (Scalar.isExact(node))
+            {
+                result.append('%').append(((Scalar)node).getExact());
+            }
+            else if (node instanceof Scalar)
+            {
+                result.append('#').append(Long.toHexString(Double.doubleToLongBits(node.getConstant())));
+            }
+            else
+            {
+                result.append(node.toString());
+            }
+        }
+        return result.toString();
+    }
+
+    /**
+     * @param encoded an expression written by encode.
+     * @return the expression it encodes.
+     */
+    static Expression decode(String encoded)
+    {
+        String[] tokens=encoded.split(" ");
+        List<Expression> stack= new ArrayList<>();
+        for (int x=tokens.length-1;x>=0;x--)
+        {
+            String token=tokens[x];
+            if (token.equals("+") || token.equals("*"))
+            {
+                Expression expression1=stack.remove(stack.size()-1);
+                Expression expression2=stack.remove(stack.size()-1);
+                stack.add(token.equals("+") ? Expression.makeSum(expression1, expression2)
+                        : Expression.makeProduct(expression1, expression2));
+            }
+            else if (token.startsWith("%"))
+            {
+                String[] fraction=token.substring(1).split("/");
+                stack.add(Expression.makeScalar(Rational.valueOf(new BigInteger(fraction[0]),
+                        fraction.length>1 ? new BigInteger(fraction[1]) : BigInteger.ONE)));
+            }
+            else if (token.startsWith("#"))
+            {
+                stack.add(Expression.makeScalar(Double.longBitsToDouble(Long.parseUnsignedLong(token.substring(1), 16))));
+            }
+            else
+            {
+                stack.add(Expression.makeVariable(token));
+            }
+        }
+        return stack.get(0);
+    }
+}
@@ -0,0 +1,113 @@
+package expressivo;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.antlr.v4.runtime.ANTLRInputStream;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.ParseTreeWalker;
+
+import expressivo.parser.ExpressionLexer;
+import expressivo.parser.ExpressionParser;
+
+/**
+ * The ANTLR lexer, token stream and parser used by Expression.parse(String), kept per thread and reset
+ * between inputs instead of being built again for every parse. All pipelines share the DFA cache of the
+ * generated lexer and parser, which warmUp fills ahead of time.
+ */
+class ParserPipeline
+{
+    //Abstract Function
+    // Maps (lexer, tokens, parser) to a reusable machine turning text into Expressions.
+    //Representation Invariant
+    // tokens reads from lexer, parser reads from tokens, and both report errors as exceptions.
+    //Safety from Rep Exposure
+    // All fields are private and never returned.
+    //Thread Safety
+    // Confinement: each pipeline is only reachable through the ThreadLocal of the thread that made it.
+    private static final ThreadLocal<ParserPipeline> PIPELINES=ThreadLocal.withInitial(ParserPipeline::new);
+
+    // Inputs that exercise every decision of the grammar: all token kinds, nesting and both operators.
+    private static final List<String> WARM_UP_INPUTS=Arrays.asList(
+            "x", "42", "3.14", ".5", ".5E-3", "x+y", "x*y", "2*x+3*y", "(x+y)*(x+1.5)",
+            "((a+b)*(c+d))+e*f*g", "a*(b+(c*(d+e)))", " x * ( y + 2 ) ", "Foo*bar+baz*1.0+(q)");
+    private static final int WARM_UP_ROUNDS=200;
+
+    private final ExpressionLexer lexer;
+    private final CommonTokenStream tokens;
+    private final ExpressionParser parser;
+    private final ParseTreeWalker walker= new ParseTreeWalker();
+
+    private ParserPipeline()
+    {
+        lexer= new ExpressionLexer(new ANTLRInputStream(""));
+        lexer.reportErrorsAsExceptions();
+        tokens= new CommonTokenStream(lexer);
+        parser= new ExpressionParser(tokens);
+        parser.reportErrorsAsExceptions();
+    }
+
+    /**
+     * @return the pipeline of the calling thread.
+     */
+    static ParserPipeline forCurrentThread()
+    {
+        return PIPELINES.get();
+    }
+
+    /**
+     * @param input an expression as defined for Expression.parse(String).
+     * @return its AST.
+     * @throws RuntimeException if the input is invalid. The pipeline is still usable afterwards.
+     */
+    Expression parse(String input)
+    {
+        return parse(input, false);
+    }
+
+    /**
+     * @param input an expression as defined for Expression.parse(String).
+     * @param exact true to make exact scalars of the numbers.
+     * @return its AST.
+     * @throws RuntimeException if the input is invalid. The pipeline is still usable afterwards.
+     */
+    Expression parse(String input,boolean exact)
+    {
+        lexer.setInputStream(new ANTLRInputStream(input));
+        tokens.setTokenSource(lexer);
+        parser.setTokenStream(tokens);
+        ParseTree tree=parser.root();
+        Expression.CollectTerms listener= new Expression.CollectTerms(exact);
+        walker.walk(listener, tree);
+        return listener.getResult();
+    }
+
+    /**
+     * Parses representative inputs so that the shared DFA cache is filled before real traffic arrives.
+     */
+    static void warmUp()
+    {
+        warmUp(WARM_UP_INPUTS);
+    }
+
+    /**
+     * @param samples inputs to parse repeatedly; invalid ones are ignored.
+     */
+    static void warmUp(Iterable<String> samples)
+    {
+        ParserPipeline pipeline=forCurrentThread();
+        for (int round=0;round<WARM_UP_ROUNDS;round++)
+        {
+            for (String sample: samples)
+            {
+                try{
+                    pipeline.parse(sample);
+                } catch(RuntimeException invalidSample)
+                {
+                    // still warms the cache for the prefix that was valid
+                }
+            }
+        }
+    }
+}
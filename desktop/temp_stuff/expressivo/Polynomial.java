@@ -0,0 +1,374 @@
+package expressivo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A polynomial in expanded form: a map from monomials to their coefficients, used to implement
+ * Expression.expand().
+ *
+ * <p>Products of polynomials that are dense and in a single (common) variable are multiplied with
+ * Karatsuba's algorithm on coefficient arrays; all other products use hash-based sparse multiplication.
+ * A chain of factors is multiplied as a balanced tree, so the operands of each multiplication have
+ * similar sizes and the fast algorithms pay off.
+ */
+final class Polynomial
+{
+    //Abstract Function
+    // Maps terms to the polynomial sum over (m,c) in terms of c*m, where monomial m has exponent
+    // m.exponents[i] for variable names[i].
+    //Representation Invariant
+    // No coefficient in terms is 0. Every monomial has names.length exponents, all >= 0.
+    //Safety from Rep Exposure
+    // Never leaves the package; terms and names are private and never returned.
+    //Thread Safety
+    // Not shared between threads; every expand builds its own polynomials.
+    private static final int KARATSUBA_THRESHOLD=32;
+
+    private final String[] names;
+    private final Map<Monomial,Double> terms;
+
+    private void checkRep(){
+        for (Map.Entry<Monomial,Double> term: terms.entrySet())
+        {
+            assert term.getValue()!=0;
+            assert term.getKey().exponents.length==names.length;
+        }
+    }
+
+    private Polynomial(String[] names,Map<Monomial,Double> terms)
+    {
+        this.names=names;
+        this.terms=terms;
+    }
+
+    /**
+     * @param expression any expression.
+     * @return expression expanded into a sum of monomials, sorted by decreasing degree and then by
+     *         variable name, each written as coefficient*variable*variable*..., with coefficient 1 left
+     *         out. A polynomial that is 0 expands to the scalar 0.
+     */
+    static Expression expand(Expression expression)
+    {
+        String[] names=expression.variables().toArray(new String[0]);
+        return of(expression, names).toExpression();
+    }
+
+    // Flattens chains of the same operator, so that products get multiplied as a balanced tree.
+    private static Polynomial of(Expression expression,String[] names)
+    {
+        expression=LazyDerivative.unwrap(expression);
+        if (expression instanceof Scalar)
+        {
+            return constant(names, expression.getConstant());
+        }
+        if (expression instanceof Variable)
+        {
+            int[] exponents= new int[names.length];
+            exponents[Arrays.binarySearch(names, expression.toString())]=1;
+            Map<Monomial,Double> terms= new HashMap<>();
+            terms.put(new Monomial(exponents), 1.0);
+            return new Polynomial(names, terms);
+        }
+        boolean sum=expression instanceof Sum;
+        List<Polynomial> operands= new ArrayList<>();
+        List<Expression> pending= new ArrayList<>();
+        pending.add(expression);
+        while (!pending.isEmpty())
+        {
+            Expression node=LazyDerivative.unwrap(pending.remove(pending.size()-1));
+            if (sum ? node instanceof Sum : node instanceof Product)
+            {
+                List<Expression> elements=node.getElements();
+                pending.add(elements.get(1));
+                pending.add(elements.get(0));
+            }
+            else
+            {
+                operands.add(of(node, names));
+            }
+        }
+        if (sum)
+        {
+            Map<Monomial,Double> terms= new HashMap<>();
+            for (Polynomial operand: operands)
+            {
+                for (Map.Entry<Monomial,Double> term: operand.terms.entrySet())
+                {
+                    accumulate(terms, term.getKey(), term.getValue());
+                }
+            }
+            return new Polynomial(names, terms);
+        }
+        return productOf(operands, 0, operands.size());
+    }
+
+    private static Polynomial productOf(List<Polynomial> factors,int from,int to)
+    {
+        if (to-from==1)
+        {
+            return factors.get(from);
+        }
+        int middle=(from+to)>>>1;
+        return productOf(factors, from, middle).multiply(productOf(factors, middle, to));
+    }
+
+    private static Polynomial constant(String[] names,double value)
+    {
+        Map<Monomial,Double> terms= new HashMap<>();
+        if (value!=0)
+        {
+            terms.put(new Monomial(new int[names.length]), value);
+        }
+        return new Polynomial(names, terms);
+    }
+
+    private static void accumulate(Map<Monomial,Double> terms,Monomial monomial,double coefficient)
+    {
+        Double sum=terms.merge(monomial, coefficient, Double::sum);
+        if (sum==0)
+        {
+            terms.remove(monomial);
+        }
+    }
+
+    private Polynomial multiply(Polynomial that)
+    {
+        if (terms.isEmpty() || that.terms.isEmpty())
+        {
+            return constant(names, 0);
+        }
+        int variable=univariateIn();
+        if (variable>=0 && variable==that.univariateIn() && isDense() && that.isDense())
+        {
+            double[] product=karatsuba(dense(variable), that.dense(variable));
+            Map<Monomial,Double> result= new HashMap<>();
+            for (int degree=0;degree<product.length;degree++)
+            {
+                if (product[degree]!=0)
+                {
+                    int[] exponents= new int[names.length];
+                    exponents[variable]=degree;
+                    result.put(new Monomial(exponents), product[degree]);
+                }
+            }
+            return new Polynomial(names, result);
+        }
+        Map<Monomial,Double> result= new HashMap<>(2*terms.size()*that.terms.size());
+        for (Map.Entry<Monomial,Double> term1: terms.entrySet())
+        {
+            for (Map.Entry<Monomial,Double> term2: that.terms.entrySet())
+            {
+                accumulate(result, term1.getKey().times(term2.getKey()), term1.getValue()*term2.getValue());
+            }
+        }
+        Polynomial product= new Polynomial(names, result);
+        product.checkRep();
+        return product;
+    }
+
+    // The only variable with a nonzero exponent, -1 if there are several, or 0 for a constant.
+    private int univariateIn()
+    {
+        int variable=-1;
+        for (Monomial monomial: terms.keySet())
+        {
+            for (int x=0;x<names.length;x++)
+            {
+                if (monomial.exponents[x]!=0)
+                {
+                    if (variable>=0 && variable!=x)
+                    {
+                        return -1;
+                    }
+                    variable=x;
+                }
+            }
+        }
+        return variable<0 && names.length>0 ? 0 : variable;
+    }
+
+    private int degree()
+    {
+        int degree=0;
+        for (Monomial monomial: terms.keySet())
+        {
+            degree=Math.max(degree, monomial.degree);
+        }
+        return degree;
+    }
+
+    private boolean isDense()
+    {
+        return 2*terms.size()>degree();
+    }
+
+    private double[] dense(int variable)
+    {
+        double[] coefficients= new double[degree()+1];
+        for (Map.Entry<Monomial,Double> term: terms.entrySet())
+        {
+            coefficients[term.getKey().exponents[variable]]=term.getValue();
+        }
+        return coefficients;
+    }
+
+    /**
+     * @param a coefficients of a polynomial, lowest degree first.
+     * @param b coefficients of another polynomial.
+     * @return coefficients of their product, of length a.length+b.length-1.
+     */
+    static double[] karatsuba(double[] a,double[] b)
+    {
+        double[] result= new double[a.length+b.length-1];
+        if (Math.min(a.length, b.length)<=KARATSUBA_THRESHOLD)
+        {
+            for (int x=0;x<a.length;x++)
+            {
+                for (int y=0;y<b.length;y++)
+                {
+                    result[x+y]+=a[x]*b[y];
+                }
+            }
+            return result;
+        }
+        // a = a0 + a1*t^half, b = b0 + b1*t^half
+        int half=Math.max(a.length, b.length)/2;
+        double[] a0=Arrays.copyOf(a, Math.min(half, a.length));
+        double[] a1=a.length>half ? Arrays.copyOfRange(a, half, a.length) : new double[] {0};
+        double[] b0=Arrays.copyOf(b, Math.min(half, b.length));
+        double[] b1=b.length>half ? Arrays.copyOfRange(b, half, b.length) : new double[] {0};
+        double[] low=karatsuba(a0, b0);
+        double[] high=karatsuba(a1, b1);
+        double[] middle=karatsuba(add(a0, a1), add(b0, b1));
+        for (int x=0;x<low.length;x++)
+        {
+            middle[x]-=low[x];
+            result[x]+=low[x];
+        }
+        for (int x=0;x<high.length;x++)
+        {
+            middle[x]-=high[x];
+            if (x+2*half<result.length)
+            {
+                result[x+2*half]+=high[x];
+            }
+        }
+        for (int x=0;x<middle.length && x+half<result.length;x++)
+        {
+            result[x+half]+=middle[x];
+        }
+        return result;
+    }
+
+    private static double[] add(double[] a,double[] b)
+    {
+        double[] result=Arrays.copyOf(a, Math.max(a.length, b.length));
+        for (int x=0;x<b.length;x++)
+        {
+            result[x]+=b[x];
+        }
+        return result;
+    }
+
+    // Builds the sum of monomials right to left, so that it groups like Expression.parse groups chains.
+    private Expression toExpression()
+    {
+        List<Monomial> monomials= new ArrayList<>(terms.keySet());
+        monomials.sort(null);
+        if (monomials.isEmpty())
+        {
+            return Expression.makeScalar(0);
+        }
+        Expression result=null;
+        for (int x=monomials.size()-1;x>=0;x--)
+        {
+            Expression term=toExpression(monomials.get(x), terms.get(monomials.get(x)));
+            result=result==null ? term : Expression.makeSum(term, result);
+        }
+        return result;
+    }
+
+    private Expression toExpression(Monomial monomial,double coefficient)
+    {
+        Expression result=null;
+        for (int x=names.length-1;x>=0;x--)
+        {
+            for (int power=0;power<monomial.exponents[x];power++)
+            {
+                Expression variable=Expression.makeVariable(names[x]);
+                result=result==null ? variable : Expression.makeProduct(variable, result);
+            }
+        }
+        if (result==null)
+        {
+            return Expression.makeScalar(coefficient);
+        }
+        return coefficient==1 ? result : Expression.makeProduct(Expression.makeScalar(coefficient), result);
+    }
+
+    /**
+     * A product of variables, each raised to a nonnegative power. Ordered by decreasing degree, then
+     * lexicographically with earlier variables weighing more, so x*x comes before x*y before y*y.
+     */
+    private static final class Monomial implements Comparable<Monomial>
+    {
+        private final int[] exponents;
+        private final int degree;
+        private final int hash;
+
+        Monomial(int[] exponents)
+        {
+            this.exponents=exponents;
+            int total=0;
+            for (int exponent: exponents)
+            {
+                total+=exponent;
+            }
+            this.degree=total;
+            this.hash=Arrays.hashCode(exponents);
+        }
+
+        Monomial times(Monomial that)
+        {
+            int[] result= new int[exponents.length];
+            for (int x=0;x<result.length;x++)
+            {
+                result[x]=exponents[x]+that.exponents[x];
+            }
+            return new Monomial(result);
+        }
+
+        @Override
+        public int compareTo(Monomial that)
+        {
+            if (degree!=that.degree)
+            {
+                return Integer.compare(that.degree, degree);
+            }
+            for (int x=0;x<exponents.length;x++)
+            {
+                if (exponents[x]!=that.exponents[x])
+                {
+                    return Integer.compare(that.exponents[x], exponents[x]);
+                }
+            }
+            return 0;
+        }
+        @Override
+        public boolean equals(Object thatObject)
+        {
+            if (!(thatObject instanceof Monomial)) return false;
+            Monomial thatMonomial=(Monomial)thatObject;
+            return hash==thatMonomial.hash && Arrays.equals(exponents, thatMonomial.exponents);
+        }
+        @Override
+        public int hashCode()
+        {
+            return hash;
+        }
+    }
+}
@@ -15,10 +15,15 @@ class Product implements Expression
     //Safety from Rep Exposure
     // The rep expressions(1 and 2) are never returned via a method.
     // The final list elements is never returned. getElements uses defensive copying.
+    //Thread Safety
+    // terms and fingerprint are beneficent mutations computed from the immutable operands; racing threads
+    // compute equal values and the volatile writes publish them safely.
     private final List<Expression> elements= new ArrayList<Expression>();
     
     private final Expression expression1;
     private final Expression expression2;
+    private volatile Fingerprint terms;
+    private volatile Fingerprint fingerprint;
     
     /**
      * 
@@ -52,6 +57,7 @@ class Product implements Expression
     @Override
     public boolean equals(Object thatObject)
     {
+        if (thatObject instanceof LazyDerivative) return this.equals(((LazyDerivative)thatObject).topLevel());
         if (!(thatObject instanceof Product)) return false;
 
         Product thatProduct= (Product)thatObject;
@@ -66,8 +72,17 @@ class Product implements Expression
     @Override
     public Expression differentiate(Expression withRespectTo)
     {
-        Expression expressionDiff1=expression1.differentiate(withRespectTo);
-        Expression expressionDiff2=expression2.differentiate(withRespectTo);
+        return differentiate(withRespectTo, Budget.unlimited());
+    }
+    @Override
+    public Expression differentiate(Expression withRespectTo,Budget budget)
+    {
+        budget.step();
+        // Reserve this level's nodes before building the operands' derivatives, so a budget that is too
+        // small fails before the work is done rather than after.
+        budget.allocate(3);
+        Expression expressionDiff1=expression1.differentiate(withRespectTo,budget);
+        Expression expressionDiff2=expression2.differentiate(withRespectTo,budget);
         
         Expression expression3=Expression.makeProduct(expression1, expressionDiff2);
         Expression expression4=Expression.makeProduct(expression2, expressionDiff1);
@@ -79,10 +94,27 @@ class Product implements Expression
     @Override
     public Expression simplify(Map<String,Double> environment)
     {
-        Expression expressionSimple1=expression1.simplify(environment);
+        return simplify(environment, Budget.unlimited());
+    }
+    @Override
+    public Expression simplify(Map<String,Double> environment,Budget budget)
+    {
+        budget.step();
+        budget.allocate(1);
+        Expression expressionSimple1=expression1.simplify(environment,budget);
         
-        Expression expressionSimple2=expression2.simplify(environment);
+        Expression expressionSimple2=expression2.simplify(environment,budget);
         //System.out.println(expressionSimple1+" "+expressionSimple2);
+        if (expressionSimple1.isConstant() && expressionSimple2.isConstant()
+                && (Scalar.isExact(expressionSimple1) || Scalar.isExact(expressionSimple2)))
+        {
+            Rational exact1=Scalar.exactValue(expressionSimple1);
+            Rational exact2=Scalar.exactValue(expressionSimple2);
+            if (exact1!=null && exact2!=null)
+            {
+                return Expression.makeScalar(exact1.multiply(exact2));
+            }
+        }
         if (expressionSimple1.isConstant() && expressionSimple2.isConstant())
         {
             double result=expressionSimple1.getConstant()*expressionSimple2.getConstant();
@@ -106,5 +138,32 @@ class Product implements Expression
         double result=a1*a2;
         return result;
     }
-
+    @Override
+    public Fingerprint fingerprint()
+    {
+        Fingerprint result=fingerprint;
+        if (result==null)
+        {
+            Fingerprint.compute(this);
+            result=fingerprint;
+        }
+        return result;
+    }
+    // The multiset total of the operands of the product chain rooted here, see Fingerprint.
+    Fingerprint terms()
+    {
+        fingerprint();
+        return terms;
+    }
+    boolean hasFingerprint()
+    {
+        return fingerprint!=null;
+    }
+    // Requires the fingerprints of both operands to be known already.
+    void computeFingerprint()
+    {
+        Fingerprint result=Fingerprint.productTerms(expression1, expression2);
+        terms=result;
+        fingerprint=Fingerprint.ofProduct(result);
+    }
 }
@@ -0,0 +1,452 @@
+package expressivo;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+
+/**
+ * An exact rational number, the value of an exact Scalar. Arithmetic is exact and results are always in
+ * lowest terms, so equal values are equal objects with equal hash codes, whatever computation produced
+ * them.
+ *
+ * <p>Numerators and denominators that fit in a long are kept as longs and combined with overflow-checked
+ * long arithmetic; only a result that overflows moves to BigInteger, and it moves back as soon as a result
+ * fits again.
+ */
+public final class Rational implements Comparable<Rational>
+{
+    //Abstract Function
+    // Maps (numerator, denominator) to numerator/denominator if big is false, and
+    // (bigNumerator, bigDenominator) to bigNumerator/bigDenominator if big is true.
+    //Representation Invariant
+    // The denominator is positive and the fraction is in lowest terms. big is true exactly when the
+    // numerator or denominator doesn't fit in a long other than Long.MIN_VALUE; then the big fields are set
+    // and the long fields are 0, else the big fields are null.
+    //Safety from Rep Exposure
+    // All fields are final and immutable.
+    //Thread Safety
+    // Immutable.
+    public static final Rational ZERO= new Rational(0, 1);
+    public static final Rational ONE= new Rational(1, 1);
+
+    private static final BigInteger LONG_MIN=BigInteger.valueOf(Long.MIN_VALUE);
+    private static final BigInteger LONG_MAX=BigInteger.valueOf(Long.MAX_VALUE);
+
+    private final boolean big;
+    private final long numerator;
+    private final long denominator;
+    private final BigInteger bigNumerator;
+    private final BigInteger bigDenominator;
+
+    private void checkRep(){
+        if (big)
+        {
+            assert bigDenominator.signum()>0 && bigNumerator.gcd(bigDenominator).equals(BigInteger.ONE);
+            assert !fits(bigNumerator) || !fits(bigDenominator);
+        }
+        else
+        {
+            assert denominator>0 && gcd(Math.abs(numerator), denominator)==1;
+        }
+    }
+
+    // Requires numerator/denominator in lowest terms, denominator > 0, neither Long.MIN_VALUE.
+    private Rational(long numerator,long denominator)
+    {
+        this.big=false;
+        this.numerator=numerator;
+        this.denominator=denominator;
+        this.bigNumerator=null;
+        this.bigDenominator=null;
+        checkRep();
+    }
+
+    // Requires numerator/denominator in lowest terms, denominator > 0, and one of them too big for a long.
+    private Rational(BigInteger numerator,BigInteger denominator)
+    {
+        this.big=true;
+        this.numerator=0;
+        this.denominator=0;
+        this.bigNumerator=numerator;
+        this.bigDenominator=denominator;
+        checkRep();
+    }
+
+    /**
+     * @param value an integer.
+     * @return value as a rational.
+     */
+    public static Rational valueOf(long value)
+    {
+        return valueOf(value, 1);
+    }
+
+    /**
+     * @param numerator the numerator.
+     * @param denominator the denominator, not 0.
+     * @return numerator/denominator in lowest terms.
+     * @throws ArithmeticException if denominator is 0.
+     */
+    public static Rational valueOf(long numerator,long denominator)
+    {
+        if (denominator==0)
+        {
+            throw new ArithmeticException("denominator is zero");
+        }
+        if (numerator==Long.MIN_VALUE || denominator==Long.MIN_VALUE)
+        {
+            return valueOf(BigInteger.valueOf(numerator), BigInteger.valueOf(denominator));
+        }
+        if (denominator<0)
+        {
+            numerator=-numerator;
+            denominator=-denominator;
+        }
+        long divisor=gcd(Math.abs(numerator), denominator);
+        return new Rational(numerator/divisor, denominator/divisor);
+    }
+
+    /**
+     * @param numerator the numerator.
+     * @param denominator the denominator, not 0.
+     * @return numerator/denominator in lowest terms.
+     * @throws ArithmeticException if denominator is 0.
+     */
+    public static Rational valueOf(BigInteger numerator,BigInteger denominator)
+    {
+        if (denominator.signum()==0)
+        {
+            throw new ArithmeticException("denominator is zero");
+        }
+        if (denominator.signum()<0)
+        {
+            numerator=numerator.negate();
+            denominator=denominator.negate();
+        }
+        BigInteger divisor=numerator.gcd(denominator);
+        if (!divisor.equals(BigInteger.ONE))
+        {
+            numerator=numerator.divide(divisor);
+            denominator=denominator.divide(divisor);
+        }
+        if (fits(numerator) && fits(denominator))
+        {
+            return new Rational(numerator.longValue(), denominator.longValue());
+        }
+        return new Rational(numerator, denominator);
+    }
+
+    /**
+     * @param value a finite double.
+     * @return the exact value of value (every finite double is a rational with a power of 2 denominator).
+     * @throws ArithmeticException if value is infinite or NaN.
+     */
+    public static Rational valueOf(double value)
+    {
+        if (Double.isNaN(value) || Double.isInfinite(value))
+        {
+            throw new ArithmeticException("not a finite number: "+value);
+        }
+        if (value==0)
+        {
+            return ZERO;
+        }
+        long bits=Double.doubleToLongBits(value);
+        int exponent=(int)((bits>>52)&0x7ff);
+        long mantissa=bits&0xfffffffffffffL;
+        if (exponent==0)
+        {
+            exponent=1; // subnormal
+        }
+        else
+        {
+            mantissa|=1L<<52;
+        }
+        exponent-=1075; // value = mantissa * 2^exponent
+        int shift=Math.min(Long.numberOfTrailingZeros(mantissa), Math.max(-exponent, 0));
+        mantissa>>=shift;
+        exponent+=shift;
+        if (value<0)
+        {
+            mantissa=-mantissa;
+        }
+        if (exponent>=0)
+        {
+            if (exponent<=Long.numberOfLeadingZeros(Math.abs(mantissa))-1)
+            {
+                return new Rational(mantissa<<exponent, 1);
+            }
+            return valueOf(BigInteger.valueOf(mantissa).shiftLeft(exponent), BigInteger.ONE);
+        }
+        if (-exponent<=62)
+        {
+            return new Rational(mantissa, 1L<<-exponent);
+        }
+        return valueOf(BigInteger.valueOf(mantissa), BigInteger.ONE.shiftLeft(-exponent));
+    }
+
+    /**
+     * @param decimal a nonnegative decimal number, as matched by NUMBER in the expression grammar:
+     *        digits with an optional fraction and an optional exponent, such as 12, 0.1, .5 or 1.5E-3.
+     * @return the exact value of decimal; 0.1 is 1/10.
+     * @throws NumberFormatException if decimal is not such a number.
+     */
+    public static Rational parse(String decimal)
+    {
+        BigDecimal value=new BigDecimal(decimal.replace('e', 'E'));
+        if (value.scale()<=0)
+        {
+            return valueOf(value.toBigIntegerExact(), BigInteger.ONE);
+        }
+        return valueOf(value.unscaledValue(), BigInteger.TEN.pow(value.scale()));
+    }
+
+    /**
+     * @param that another rational.
+     * @return this+that.
+     */
+    public Rational add(Rational that)
+    {
+        if (!big && !that.big)
+        {
+            try
+            {
+                long divisor=gcd(denominator, that.denominator);
+                long thatScale=that.denominator/divisor;
+                long sum=Math.addExact(Math.multiplyExact(numerator, thatScale),
+                        Math.multiplyExact(that.numerator, denominator/divisor));
+                return valueOf(sum, Math.multiplyExact(denominator, thatScale));
+            }
+            catch (ArithmeticException overflow)
+            {
+                // fall through to BigInteger
+            }
+        }
+        BigInteger sum=getNumerator().multiply(that.getDenominator())
+                .add(that.getNumerator().multiply(getDenominator()));
+        return valueOf(sum, getDenominator().multiply(that.getDenominator()));
+    }
+
+    /**
+     * @param that another rational.
+     * @return this*that.
+     */
+    public Rational multiply(Rational that)
+    {
+        if (!big && !that.big)
+        {
+            try
+            {
+                // Cancelling first keeps the operands small and the result in lowest terms.
+                long divisor1=gcd(Math.abs(numerator), that.denominator);
+                long divisor2=gcd(Math.abs(that.numerator), denominator);
+                long product=Math.multiplyExact(numerator/divisor1, that.numerator/divisor2);
+                long quotient=Math.multiplyExact(denominator/divisor2, that.denominator/divisor1);
+                if (product!=Long.MIN_VALUE && quotient!=Long.MIN_VALUE)
+                {
+                    return new Rational(product, quotient);
+                }
+            }
+            catch (ArithmeticException overflow)
+            {
+                // fall through to BigInteger
+            }
+        }
+        return valueOf(getNumerator().multiply(that.getNumerator()), getDenominator().multiply(that.getDenominator()));
+    }
+
+    /**
+     * @return the numerator, in lowest terms; has the sign of this rational.
+     */
+    public BigInteger getNumerator()
+    {
+        return big ? bigNumerator : BigInteger.valueOf(numerator);
+    }
+
+    /**
+     * @return the denominator, in lowest terms; always positive.
+     */
+    public BigInteger getDenominator()
+    {
+        return big ? bigDenominator : BigInteger.valueOf(denominator);
+    }
+
+    /**
+     * @return -1, 0 or 1 as this rational is negative, zero or positive.
+     */
+    public int signum()
+    {
+        return big ? bigNumerator.signum() : Long.signum(numerator);
+    }
+
+    /**
+     * @return the double closest to this rational, ties to even, as Double.parseDouble would give for its
+     *         exact decimal expansion.
+     */
+    public double doubleValue()
+    {
+        // Both fit in a double's 53 bits, so the quotient is correctly rounded.
+        if (!big && Math.abs(numerator)<(1L<<53) && denominator<(1L<<53))
+        {
+            return (double)numerator/denominator;
+        }
+        BigInteger top=getNumerator().abs();
+        BigInteger bottom=getDenominator();
+        if (top.signum()==0)
+        {
+            return 0;
+        }
+        // The value is in [2^(scale-1), 2^(scale+1)).
+        int scale=top.bitLength()-bottom.bitLength();
+        double magnitude;
+        if (scale<=-1022)
+        {
+            // Below 2^-1021 doubles are spaced 2^-1074 apart: round to a multiple of that, ties to even.
+            // For q <= 2^53 the double with bit pattern q is exactly q*2^-1074.
+            BigInteger[] quotient=top.shiftLeft(1074).divideAndRemainder(bottom);
+            long q=quotient[0].longValue();
+            int half=quotient[1].shiftLeft(1).compareTo(bottom);
+            if (half>0 || (half==0 && (q&1)==1))
+            {
+                q++;
+            }
+            magnitude=Double.longBitsToDouble(q);
+        }
+        else
+        {
+            // A quotient of 55 or 56 bits, with a sticky bit for a nonzero remainder below the rounding
+            // position, rounds correctly in the one long to double conversion; scaling back is exact.
+            int shift=55-scale;
+            BigInteger[] quotient=shift>=0 ? top.shiftLeft(shift).divideAndRemainder(bottom)
+                    : top.divideAndRemainder(bottom.shiftLeft(-shift));
+            long q=quotient[0].longValue()|(quotient[1].signum()==0 ? 0 : 1);
+            magnitude=Math.scalb((double)q, -shift);
+        }
+        return signum()<0 ? -magnitude : magnitude;
+    }
+
+    /**
+     * @return true if the value has a finite decimal expansion, i.e. its denominator has no prime factors
+     *         other than 2 and 5.
+     */
+    public boolean isTerminatingDecimal()
+    {
+        BigInteger rest=getDenominator();
+        rest=rest.shiftRight(rest.getLowestSetBit());
+        BigInteger five=BigInteger.valueOf(5);
+        while (rest.mod(five).signum()==0)
+        {
+            rest=rest.divide(five);
+        }
+        return rest.equals(BigInteger.ONE);
+    }
+
+    /**
+     * @return this rational as an exact decimal.
+     * @throws ArithmeticException if it is not a terminating decimal.
+     */
+    public String toDecimalString()
+    {
+        BigInteger bottom=getDenominator();
+        int twos=bottom.getLowestSetBit();
+        BigInteger rest=bottom.shiftRight(twos);
+        BigInteger five=BigInteger.valueOf(5);
+        int fives=0;
+        while (rest.mod(five).signum()==0)
+        {
+            rest=rest.divide(five);
+            fives++;
+        }
+        if (!rest.equals(BigInteger.ONE))
+        {
+            throw new ArithmeticException("not a terminating decimal: "+this);
+        }
+        // Scaled by 10^digits the value is an integer; print it with the point digits from the right.
+        int digits=Math.max(twos, fives);
+        String integer=getNumerator().abs().multiply(BigInteger.TEN.pow(digits)).divide(bottom).toString();
+        StringBuilder result= new StringBuilder(signum()<0 ? "-" : "");
+        if (digits==0)
+        {
+            return result.append(integer).toString();
+        }
+        while (integer.length()<=digits)
+        {
+            integer="0"+integer;
+        }
+        return result.append(integer, 0, integer.length()-digits).append('.')
+                .append(integer, integer.length()-digits, integer.length()).toString();
+    }
+
+    @Override
+    public int compareTo(Rational that)
+    {
+        if (!big && !that.big)
+        {
+            try
+            {
+                return Long.compare(Math.multiplyExact(numerator, that.denominator),
+                        Math.multiplyExact(that.numerator, denominator));
+            }
+            catch (ArithmeticException overflow)
+            {
+                // fall through to BigInteger
+            }
+        }
+        BigInteger cross=that.getNumerator().multiply(getDenominator());
+        return getNumerator().multiply(that.getDenominator()).compareTo(cross);
+    }
+
+    @Override
+    public boolean equals(Object thatObject)
+    {
+        if (!(thatObject instanceof Rational)) return false;
+        Rational thatRational=(Rational)thatObject;
+        if (big!=thatRational.big) return false;
+        if (!big)
+        {
+            return numerator==thatRational.numerator && denominator==thatRational.denominator;
+        }
+        return bigNumerator.equals(thatRational.bigNumerator)
+                && bigDenominator.equals(thatRational.bigDenominator);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        if (!big)
+        {
+            return 31*Long.hashCode(numerator)+Long.hashCode(denominator);
+        }
+        return 31*bigNumerator.hashCode()+bigDenominator.hashCode();
+    }
+
+    /**
+     * @return the rational as numerator/denominator, or just the numerator if the denominator is 1.
+     */
+    @Override
+    public String toString()
+    {
+        String result=big ? bigNumerator.toString() : Long.toString(numerator);
+        if (big ? !bigDenominator.equals(BigInteger.ONE) : denominator!=1)
+        {
+            result+="/"+(big ? bigDenominator : Long.toString(denominator));
+        }
+        return result;
+    }
+
+    private static boolean fits(BigInteger value)
+    {
+        return value.compareTo(LONG_MIN)>0 && value.compareTo(LONG_MAX)<=0;
+    }
+
+    // Requires a, b >= 0, not both 0.
+    private static long gcd(long a,long b)
+    {
+        while (b!=0)
+        {
+            long rest=a%b;
+            a=b;
+            b=rest;
+        }
+        return a;
+    }
+}
@@ -0,0 +1,495 @@
+package expressivo;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Applies a set of RewriteRules to expressions, bottom-up, until no rule applies anywhere.
+ *
+ * <p>The rules are indexed in a discrimination tree keyed on the preorder sequence of node kinds and
+ * leaves of their patterns (a metavariable being a wildcard), so each node only tries the rules whose
+ * pattern has its shape, however many rules there are. Expressions are hash-consed while they are
+ * rewritten, so equal subexpressions are one node, are rewritten once, and the result is remembered across
+ * calls. Where several rules apply to a node, the first one in the list given to the constructor wins.
+ *
+ * <p>The rule set should terminate. A chain of rewrites at one node that comes back to a node it already
+ * passed stops there, which covers rules like a+b -> b+a; rewrite(expression, budget) bounds the work done
+ * by rule sets that may not terminate otherwise.
+ */
+public class RewriteEngine
+{
+    //Abstract Function
+    // Maps rules to the function rewriting an expression to its normal form under rules, applied
+    // innermost first, first rule first. index is the discrimination tree of the rules' patterns. normal
+    // maps every hash-consed node seen so far to its normal form, and nodes maps shapes to hash-consed nodes.
+    // firings, nodesVisited and rulesTried count what rewriting has done since the last resetStatistics.
+    //Representation Invariant
+    // Every rule of rules is in index under the key sequence of its pattern. Every key and value of normal
+    // is a value of nodes. maxDepth is the greatest depth of any pattern.
+    //Safety from Rep Exposure
+    // rules is unmodifiable; the maps are private and statistics are returned as copies. Expressions and
+    // rules are immutable.
+    //Thread Safety
+    // Every method that uses the caches or statistics is synchronized on this.
+    private static final int CACHE_LIMIT=1<<20;
+    private static final Object SUM="+";
+    private static final Object PRODUCT="*";
+
+    private final List<RewriteRule> rules;
+    private final IndexNode index= new IndexNode();
+    private final int maxDepth;
+    private final Map<Shape,Expression> nodes= new HashMap<>();
+    private final Map<Expression,Expression> normal= new IdentityHashMap<>();
+    private final Map<String,Long> firings= new LinkedHashMap<>();
+    private long nodesVisited=0;
+    private long rulesTried=0;
+
+    private void checkRep(){
+        assert normal.size()<=nodes.size();
+    }
+
+    /**
+     * @param rules the rules, in order of priority.
+     */
+    public RewriteEngine(List<RewriteRule> rules)
+    {
+        this.rules=Collections.unmodifiableList(new ArrayList<>(rules));
+        int depth=0;
+        for (int x=0;x<this.rules.size();x++)
+        {
+            RewriteRule rule=this.rules.get(x);
+            IndexNode node=index;
+            for (Object key: keys(rule, rule.getPattern()))
+            {
+                node=key==null ? node.wildcard() : node.child(key);
+            }
+            node.rules.add(x);
+            depth=Math.max(depth, depth(rule.getPattern()));
+            firings.put(rule.getName(), 0L);
+        }
+        this.maxDepth=depth;
+        checkRep();
+    }
+
+    /**
+     * @return the rules, in order of priority.
+     */
+    public List<RewriteRule> getRules()
+    {
+        return rules;
+    }
+
+    /**
+     * @param expression the expression to rewrite.
+     * @return expression with rules applied bottom-up until none applies anywhere. Equal to expression
+     *         if the rules preserve equality.
+     */
+    public Expression rewrite(Expression expression)
+    {
+        return rewrite(expression, Budget.unlimited());
+    }
+
+    /**
+     * Rewrites like rewrite(expression), checking budget at every rewrite step and new node.
+     * @param expression the expression to rewrite.
+     * @param budget limits on the work done; used up by this call.
+     * @return expression with rules applied bottom-up until none applies anywhere.
+     * @throws BudgetExceededException as soon as budget runs out or is cancelled.
+     */
+    public synchronized Expression rewrite(Expression expression,Budget budget)
+    {
+        if (nodes.size()>CACHE_LIMIT)
+        {
+            clearCache();
+        }
+        Map<Expression,Expression> done= new IdentityHashMap<>();
+        Deque<Expression> pending= new ArrayDeque<>();
+        pending.push(expression);
+        while (!pending.isEmpty())
+        {
+            Expression node=pending.peek();
+            if (done.containsKey(node))
+            {
+                pending.pop();
+                continue;
+            }
+            Expression unwrapped=LazyDerivative.unwrap(node);
+            if (unwrapped instanceof Sum || unwrapped instanceof Product)
+            {
+                List<Expression> elements=unwrapped.getElements();
+                Expression left=done.get(elements.get(0));
+                Expression right=done.get(elements.get(1));
+                if (left==null || right==null)
+                {
+                    pending.push(elements.get(1));
+                    pending.push(elements.get(0));
+                    continue;
+                }
+                Expression consed=cons(unwrapped instanceof Sum ? SUM : PRODUCT, left, right, budget);
+                done.put(node, normalize(consed, budget));
+            }
+            else
+            {
+                done.put(node, normalize(cons(leafKey(unwrapped), null, null, budget), budget));
+            }
+            pending.pop();
+        }
+        checkRep();
+        return done.get(expression);
+    }
+
+    /**
+     * @return for each rule name, how many times a rule of that name fired since the last reset.
+     */
+    public synchronized Map<String,Long> getFirings()
+    {
+        return new LinkedHashMap<>(firings);
+    }
+
+    /**
+     * @return the number of distinct nodes rewriting looked up rules for since the last reset.
+     */
+    public synchronized long getNodesVisited()
+    {
+        return nodesVisited;
+    }
+
+    /**
+     * @return the number of (node, rule) pairs the index let through to a full match since the last reset.
+     */
+    public synchronized long getRulesTried()
+    {
+        return rulesTried;
+    }
+
+    /**
+     * Sets every statistic back to 0.
+     */
+    public synchronized void resetStatistics()
+    {
+        for (String name: firings.keySet())
+        {
+            firings.put(name, 0L);
+        }
+        nodesVisited=0;
+        rulesTried=0;
+    }
+
+    /**
+     * Forgets the remembered normal forms, to free their memory.
+     */
+    public synchronized void clearCache()
+    {
+        nodes.clear();
+        normal.clear();
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return rules.size()+" rules, "+nodesVisited+" nodes visited, "+rulesTried+" rules tried, fired "+firings;
+    }
+
+    // Rewrites a hash-consed node whose operands are in normal form to its normal form.
+    private Expression normalize(Expression node,Budget budget)
+    {
+        Set<Expression> seen=Collections.newSetFromMap(new IdentityHashMap<>());
+        Expression current=node;
+        while (true)
+        {
+            Expression known=normal.get(current);
+            if (known!=null)
+            {
+                current=known;
+                break;
+            }
+            budget.step();
+            nodesVisited++;
+            seen.add(current);
+            Expression rewritten=applyFirst(current, budget);
+            if (rewritten==null || seen.contains(rewritten))
+            {
+                break; // no rule applies, or the rules went round in a cycle
+            }
+            current=rewritten;
+        }
+        for (Expression before: seen)
+        {
+            normal.put(before, current);
+        }
+        return current;
+    }
+
+    // The first rule that applies to node, applied, or null if none does.
+    private Expression applyFirst(Expression node,Budget budget)
+    {
+        List<Expression> subject= new ArrayList<>();
+        List<Integer> next= new ArrayList<>();
+        flatten(node, 0, subject, next);
+        List<Integer> candidates= new ArrayList<>();
+        index.retrieve(subject, next, 0, candidates);
+        Collections.sort(candidates);
+        for (int candidate: candidates)
+        {
+            rulesTried++;
+            RewriteRule rule=rules.get(candidate);
+            Map<String,Expression> bindings= new HashMap<>();
+            if (match(rule, rule.getPattern(), node, bindings)
+                    && rule.accepts(Collections.unmodifiableMap(bindings)))
+            {
+                firings.merge(rule.getName(), 1L, Long::sum);
+                Expression replacement=rule.getReplacement();
+                if (rule.isMetavariable(replacement))
+                {
+                    return bindings.get(replacement.toString());
+                }
+                if (replacement instanceof Sum || replacement instanceof Product)
+                {
+                    // The root is left for normalize's loop; only the operands are normalized here.
+                    List<Expression> elements=replacement.getElements();
+                    return cons(replacement instanceof Sum ? SUM : PRODUCT,
+                            instantiate(rule, elements.get(0), bindings, budget),
+                            instantiate(rule, elements.get(1), bindings, budget), budget);
+                }
+                return cons(leafKey(replacement), null, null, budget);
+            }
+        }
+        return null;
+    }
+
+    // The normal form of template with its metavariables replaced by bindings.
+    private Expression instantiate(RewriteRule rule,Expression template,Map<String,Expression> bindings,
+            Budget budget)
+    {
+        if (rule.isMetavariable(template))
+        {
+            return bindings.get(template.toString());
+        }
+        if (template instanceof Sum || template instanceof Product)
+        {
+            List<Expression> elements=template.getElements();
+            Expression left=instantiate(rule, elements.get(0), bindings, budget);
+            Expression right=instantiate(rule, elements.get(1), bindings, budget);
+            return normalize(cons(template instanceof Sum ? SUM : PRODUCT, left, right, budget), budget);
+        }
+        return normalize(cons(leafKey(template), null, null, budget), budget);
+    }
+
+    // Hash-consed nodes make equal subexpressions identical, so a repeated metavariable is checked with ==.
+    private static boolean match(RewriteRule rule,Expression pattern,Expression node,
+            Map<String,Expression> bindings)
+    {
+        if (rule.isMetavariable(pattern))
+        {
+            Expression bound=bindings.putIfAbsent(pattern.toString(), node);
+            return bound==null || bound==node;
+        }
+        if (pattern instanceof Sum || pattern instanceof Product)
+        {
+            if (pattern.getClass()!=node.getClass())
+            {
+                return false;
+            }
+            List<Expression> patterns=pattern.getElements();
+            List<Expression> elements=node.getElements();
+            return match(rule, patterns.get(0), elements.get(0), bindings)
+                    && match(rule, patterns.get(1), elements.get(1), bindings);
+        }
+        return leafKey(pattern).equals(leafKey(node));
+    }
+
+    // The hash-consed node of the given shape; left and right must be hash-consed, or null for a leaf.
+    private Expression cons(Object key,Expression left,Expression right,Budget budget)
+    {
+        Shape shape= new Shape(key, left, right);
+        Expression found=nodes.get(shape);
+        if (found==null)
+        {
+            budget.allocate(1);
+            if (key==SUM)
+            {
+                found=Expression.makeSum(left, right);
+            }
+            else if (key==PRODUCT)
+            {
+                found=Expression.makeProduct(left, right);
+            }
+            else if (key instanceof Rational)
+            {
+                found=Expression.makeScalar((Rational)key);
+            }
+            else if (key instanceof Long)
+            {
+                found=Expression.makeScalar(Double.longBitsToDouble((Long)key));
+            }
+            else
+            {
+                found=Expression.makeVariable((String)key);
+            }
+            nodes.put(shape, found);
+        }
+        return found;
+    }
+
+    // The preorder of node down to maxDepth, with the index just past each subtree in next.
+    private void flatten(Expression node,int depth,List<Expression> subject,List<Integer> next)
+    {
+        int at=subject.size();
+        subject.add(node);
+        next.add(0);
+        if (depth<maxDepth && (node instanceof Sum || node instanceof Product))
+        {
+            List<Expression> elements=node.getElements();
+            flatten(elements.get(0), depth+1, subject, next);
+            flatten(elements.get(1), depth+1, subject, next);
+        }
+        next.set(at, subject.size());
+    }
+
+    // The preorder keys of pattern, null standing for a metavariable.
+    private static List<Object> keys(RewriteRule rule,Expression pattern)
+    {
+        List<Object> result= new ArrayList<>();
+        Deque<Expression> pending= new ArrayDeque<>();
+        pending.push(pattern);
+        while (!pending.isEmpty())
+        {
+            Expression node=pending.pop();
+            if (rule.isMetavariable(node))
+            {
+                result.add(null);
+            }
+            else if (node instanceof Sum || node instanceof Product)
+            {
+                result.add(node instanceof Sum ? SUM : PRODUCT);
+                List<Expression> elements=node.getElements();
+                pending.push(elements.get(1));
+                pending.push(elements.get(0));
+            }
+            else
+            {
+                result.add(leafKey(node));
+            }
+        }
+        return result;
+    }
+
+    private static int depth(Expression pattern)
+    {
+        if (pattern instanceof Sum || pattern instanceof Product)
+        {
+            List<Expression> elements=pattern.getElements();
+            return 1+Math.max(depth(elements.get(0)), depth(elements.get(1)));
+        }
+        return 0;
+    }
+
+    private static Object keyOf(Expression node)
+    {
+        if (node instanceof Sum)
+        {
+            return SUM;
+        }
+        if (node instanceof Product)
+        {
+            return PRODUCT;
+        }
+        return leafKey(node);
+    }
+
+    // An exact scalar by its value, another scalar by the bits of its value, a variable by its name.
+    private static Object leafKey(Expression leaf)
+    {
+        if (Scalar.isExact(leaf))
+        {
+            return ((Scalar)leaf).getExact();
+        }
+        if (leaf instanceof Scalar)
+        {
+            return Double.doubleToLongBits(leaf.getConstant());
+        }
+        return leaf.toString();
+    }
+
+    /**
+     * A node of the discrimination tree: one child per key that may come next in a pattern's preorder,
+     * one child for a metavariable, and the rules whose whole pattern ends here.
+     */
+    private static final class IndexNode
+    {
+        private final Map<Object,IndexNode> children= new HashMap<>();
+        private IndexNode wildcard;
+        private final List<Integer> rules= new ArrayList<>();
+
+        IndexNode child(Object key)
+        {
+            return children.computeIfAbsent(key, k -> new IndexNode());
+        }
+
+        IndexNode wildcard()
+        {
+            if (wildcard==null)
+            {
+                wildcard= new IndexNode();
+            }
+            return wildcard;
+        }
+
+        // Adds the rules whose pattern may match the subject from position at on.
+        void retrieve(List<Expression> subject,List<Integer> next,int at,List<Integer> out)
+        {
+            if (at==subject.size())
+            {
+                out.addAll(rules);
+                return;
+            }
+            if (wildcard!=null)
+            {
+                wildcard.retrieve(subject, next, next.get(at), out);
+            }
+            IndexNode child=children.get(keyOf(subject.get(at)));
+            if (child!=null)
+            {
+                child.retrieve(subject, next, at+1, out);
+            }
+        }
+    }
+
+    /**
+     * The shape of a hash-consed node: its key and its (hash-consed) operands, compared by identity.
+     */
+    private static final class Shape
+    {
+        private final Object key;
+        private final Expression left;
+        private final Expression right;
+
+        Shape(Object key,Expression left,Expression right)
+        {
+            this.key=key;
+            this.left=left;
+            this.right=right;
+        }
+        @Override
+        public boolean equals(Object thatObject)
+        {
+            if (!(thatObject instanceof Shape)) return false;
+            Shape thatShape=(Shape)thatObject;
+            return key.equals(thatShape.key) && left==thatShape.left && right==thatShape.right;
+        }
+        @Override
+        public int hashCode()
+        {
+            return Objects.hash(key, System.identityHashCode(left), System.identityHashCode(right));
+        }
+    }
+}
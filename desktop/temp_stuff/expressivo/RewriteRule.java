@@ -0,0 +1,173 @@
+package expressivo;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * A rewrite rule pattern -> replacement for a RewriteEngine. Patterns and replacements are Expressions in
+ * which some variable names are declared metavariables: a metavariable matches any subexpression, and all
+ * occurrences of the same metavariable must match equal subexpressions. Every other variable matches only
+ * itself and every scalar only an equal scalar. A rule may also have a condition on what the metavariables
+ * matched.
+ *
+ * <p>For example, parse("zeroRight", "a*0", "0", "a") rewrites x*0 and (x+y)*0 to 0.
+ */
+public final class RewriteRule
+{
+    //Abstract Function
+    // Maps (name, pattern, replacement, metavariables, condition) to the rule that rewrites every
+    // expression equal to pattern under some substitution s of metavariables, with condition(s), to
+    // replacement under s.
+    //Representation Invariant
+    // Every metavariable that occurs in replacement occurs in pattern. pattern and replacement contain no
+    // LazyDerivative.
+    //Safety from Rep Exposure
+    // metavariables is an unmodifiable copy; Expressions are immutable.
+    //Thread Safety
+    // Immutable, provided condition is thread-safe.
+    private final String name;
+    private final Expression pattern;
+    private final Expression replacement;
+    private final Set<String> metavariables;
+    private final Predicate<Map<String,Expression>> condition;
+
+    private void checkRep(){
+        assert metavariables.containsAll(metavariablesOf(replacement)) : "unbound metavariable in "+this;
+    }
+
+    /**
+     * @param name the name the rule is reported under in statistics.
+     * @param pattern the expression to look for.
+     * @param replacement what to replace it with.
+     * @param metavariables the names of the variables of pattern and replacement that stand for
+     *        subexpressions.
+     * @throws IllegalArgumentException if replacement uses a metavariable that pattern doesn't bind.
+     */
+    public RewriteRule(String name,Expression pattern,Expression replacement,Set<String> metavariables)
+    {
+        this(name, unwrapAll(pattern), unwrapAll(replacement),
+                Collections.unmodifiableSet(new HashSet<>(metavariables)), bindings -> true);
+        Set<String> bound=metavariablesOf(this.pattern);
+        for (String metavariable: metavariablesOf(this.replacement))
+        {
+            if (!bound.contains(metavariable))
+            {
+                throw new IllegalArgumentException("metavariable "+metavariable+" of "+name
+                        +" is not bound by its pattern");
+            }
+        }
+        checkRep();
+    }
+
+    private RewriteRule(String name,Expression pattern,Expression replacement,Set<String> metavariables,
+            Predicate<Map<String,Expression>> condition)
+    {
+        this.name=name;
+        this.pattern=pattern;
+        this.replacement=replacement;
+        this.metavariables=metavariables;
+        this.condition=condition;
+    }
+
+    /**
+     * @param name the name the rule is reported under in statistics.
+     * @param pattern the expression to look for, as defined for Expression.parse(String).
+     * @param replacement what to replace it with, as defined for Expression.parse(String).
+     * @param metavariables the names of the variables of pattern and replacement that stand for
+     *        subexpressions.
+     * @return the rule.
+     * @throws IllegalArgumentException if pattern or replacement is invalid, or if replacement uses a
+     *         metavariable that pattern doesn't bind.
+     */
+    public static RewriteRule parse(String name,String pattern,String replacement,String... metavariables)
+    {
+        return new RewriteRule(name, Expression.parse(pattern), Expression.parse(replacement),
+                new HashSet<>(Arrays.asList(metavariables)));
+    }
+
+    /**
+     * @param condition decides, from what each metavariable matched, whether the rule applies.
+     * @return this rule, applying only where condition also holds (and this rule's own condition does).
+     */
+    public RewriteRule when(Predicate<Map<String,Expression>> condition)
+    {
+        RewriteRule result= new RewriteRule(name, pattern, replacement, metavariables,
+                this.condition.and(condition));
+        result.checkRep();
+        return result;
+    }
+
+    /**
+     * @return the name of the rule.
+     */
+    public String getName()
+    {
+        return name;
+    }
+
+    /**
+     * @return the pattern of the rule.
+     */
+    public Expression getPattern()
+    {
+        return pattern;
+    }
+
+    /**
+     * @return the replacement of the rule.
+     */
+    public Expression getReplacement()
+    {
+        return replacement;
+    }
+
+    /**
+     * @return the names of the metavariables of the rule.
+     */
+    public Set<String> getMetavariables()
+    {
+        return metavariables;
+    }
+
+    boolean isMetavariable(Expression node)
+    {
+        return node instanceof Variable && metavariables.contains(node.toString());
+    }
+
+    boolean accepts(Map<String,Expression> bindings)
+    {
+        return condition.test(bindings);
+    }
+
+    @Override
+    public String toString()
+    {
+        return name+": "+pattern+" -> "+replacement;
+    }
+
+    private Set<String> metavariablesOf(Expression expression)
+    {
+        Set<String> result= new HashSet<>(expression.variables());
+        result.retainAll(metavariables);
+        return result;
+    }
+
+    // Rules are small; this just makes sure the engine never sees a LazyDerivative in one.
+    private static Expression unwrapAll(Expression expression)
+    {
+        expression=LazyDerivative.unwrap(expression);
+        if (expression instanceof Sum || expression instanceof Product)
+        {
+            List<Expression> elements=expression.getElements();
+            Expression left=unwrapAll(elements.get(0));
+            Expression right=unwrapAll(elements.get(1));
+            return expression instanceof Sum ? Expression.makeSum(left, right) : Expression.makeProduct(left, right);
+        }
+        return expression;
+    }
+}
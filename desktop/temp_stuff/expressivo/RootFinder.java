@@ -0,0 +1,303 @@
+package expressivo;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Finds roots of a function of one variable by Newton's method. The function and its derivative are
+ * differentiated and compiled once, when the finder is made; a solve then only runs the two compiled
+ * programs on a workspace it allocates once, so iterations allocate nothing.
+ *
+ * <p>Newton steps are safeguarded: once a sign change brackets a root, a step that would leave the bracket,
+ * or that shrinks too slowly, is replaced by bisection, so a bracketed solve always converges. A solve
+ * that doesn't converge within the iteration limit, or whose Newton iteration breaks down before it finds
+ * a bracket, returns NaN.
+ */
+public final class RootFinder
+{
+    //Abstract Function
+    // Maps (function, variable, tolerance, maxIterations) to a root finder for function as a function of
+    // variable; value and slope are function and its derivative by variable, compiled over [variable].
+    //Representation Invariant
+    // tolerance > 0, maxIterations > 0. value and slope are compiled over exactly [variable], and
+    // workspaceSize >= the workspace size of each.
+    //Safety from Rep Exposure
+    // All fields are final and immutable; the compiled programs are never returned.
+    //Thread Safety
+    // Immutable. Every solve allocates its own workspace, so any number of threads can solve at once.
+    private static final double DEFAULT_TOLERANCE=1e-12;
+    private static final int DEFAULT_MAX_ITERATIONS=100;
+
+    private final Expression function;
+    private final Expression derivative;
+    private final String variable;
+    private final double tolerance;
+    private final int maxIterations;
+    private final CompiledExpression value;
+    private final CompiledExpression slope;
+    private final int workspaceSize;
+
+    private void checkRep(){
+        assert tolerance>0 && maxIterations>0;
+        assert value.getVariables().equals(Collections.singletonList(variable));
+        assert slope.getVariables().equals(Collections.singletonList(variable));
+        assert workspaceSize>=value.workspaceSize() && workspaceSize>=slope.workspaceSize();
+    }
+
+    /**
+     * Makes a finder with a relative tolerance of 1e-12 and at most 100 iterations per solve.
+     * @param function the function whose roots to find.
+     * @param variable the variable of function, as made by Expression.makeVariable.
+     * @throws IllegalArgumentException if variable is not a variable, or function has other variables
+     *         (fix them first with simplify).
+     */
+    public RootFinder(Expression function,Expression variable)
+    {
+        this(function, variable, DEFAULT_TOLERANCE, DEFAULT_MAX_ITERATIONS);
+    }
+
+    /**
+     * @param function the function whose roots to find.
+     * @param variable the variable of function, as made by Expression.makeVariable.
+     * @param tolerance a solve stops when its last step was at most tolerance*(1+|x|), > 0.
+     * @param maxIterations the most evaluations of the function a solve makes, > 0.
+     * @throws IllegalArgumentException if variable is not a variable, function has other variables (fix
+     *         them first with simplify), or tolerance or maxIterations is not positive.
+     */
+    public RootFinder(Expression function,Expression variable,double tolerance,int maxIterations)
+    {
+        if (!(variable instanceof Variable))
+        {
+            throw new IllegalArgumentException("can only solve for a variable: "+variable);
+        }
+        if (!(tolerance>0) || maxIterations<=0)
+        {
+            throw new IllegalArgumentException("tolerance and maxIterations must be positive");
+        }
+        this.variable=variable.toString();
+        for (String name: function.variables())
+        {
+            if (!name.equals(this.variable))
+            {
+                throw new IllegalArgumentException("function has a variable other than "+variable+": "+name);
+            }
+        }
+        List<String> inputs=Collections.singletonList(this.variable);
+        this.function=function;
+        // Simplifying with no bindings folds the constant subtrees differentiate leaves behind.
+        this.derivative=function.differentiate(variable).simplify(Collections.<String,Double>emptyMap());
+        this.tolerance=tolerance;
+        this.maxIterations=maxIterations;
+        this.value=CompiledExpression.compile(function, inputs);
+        this.slope=CompiledExpression.compile(derivative, inputs);
+        this.workspaceSize=Math.max(value.workspaceSize(), slope.workspaceSize());
+        checkRep();
+    }
+
+    /**
+     * @return the function whose roots are found.
+     */
+    public Expression getFunction()
+    {
+        return function;
+    }
+
+    /**
+     * @return the derivative of the function that the Newton steps use.
+     */
+    public Expression getDerivative()
+    {
+        return derivative;
+    }
+
+    /**
+     * Runs Newton's method from guess. As soon as two iterates have function values of opposite signs, the
+     * solve continues safeguarded within that bracket.
+     * @param guess the starting point.
+     * @return a root of the function, or NaN if none was found: the iteration hit a zero derivative or a
+     *         non-finite value before finding a bracket, or ran out of iterations.
+     */
+    public double solve(double guess)
+    {
+        double[] point= new double[1];
+        double[] workspace= new double[workspaceSize];
+        double x=guess;
+        double fx=evaluate(value, x, point, workspace);
+        for (int iteration=1;iteration<maxIterations;iteration++)
+        {
+            if (fx==0)
+            {
+                return x;
+            }
+            double next=x-fx/evaluate(slope, x, point, workspace);
+            double fnext=evaluate(value, next, point, workspace);
+            if (Double.isNaN(fnext) || Double.isInfinite(fnext))
+            {
+                return Double.NaN;
+            }
+            if (Math.abs(next-x)<=tolerance*(1+Math.abs(next)))
+            {
+                return next;
+            }
+            if (fnext!=0 && (fnext<0)!=(fx<0))
+            {
+                return bracketed(x, fx, next, fnext, iteration+1, point, workspace);
+            }
+            x=next;
+            fx=fnext;
+        }
+        return Double.NaN;
+    }
+
+    /**
+     * Runs safeguarded Newton within [lower, upper], starting from the end where the function is smaller.
+     * @param lower one end of the bracket.
+     * @param upper the other end of the bracket.
+     * @return a root of the function between lower and upper, or NaN if the function has the same sign at
+     *         both ends (or is not finite there) or the solve ran out of iterations.
+     */
+    public double solve(double lower,double upper)
+    {
+        double[] point= new double[1];
+        double[] workspace= new double[workspaceSize];
+        double flower=evaluate(value, lower, point, workspace);
+        double fupper=evaluate(value, upper, point, workspace);
+        if (flower==0)
+        {
+            return lower;
+        }
+        if (fupper==0)
+        {
+            return upper;
+        }
+        if (!((flower<0 && fupper>0) || (flower>0 && fupper<0)))
+        {
+            return Double.NaN;
+        }
+        return bracketed(lower, flower, upper, fupper, 2, point, workspace);
+    }
+
+    /**
+     * Solves from every guess, in parallel.
+     * @param guesses the starting points.
+     * @return result[i] is solve(guesses[i]).
+     */
+    public double[] solveAll(double[] guesses)
+    {
+        double[] result= new double[guesses.length];
+        IntStream.range(0, guesses.length).parallel().forEach(x -> result[x]=solve(guesses[x]));
+        return result;
+    }
+
+    /**
+     * Solves within every bracket, in parallel.
+     * @param lowers one end of each bracket.
+     * @param uppers the other end of each bracket, as many as lowers.
+     * @return result[i] is solve(lowers[i], uppers[i]).
+     * @throws IllegalArgumentException if lowers and uppers differ in length.
+     */
+    public double[] solveAll(double[] lowers,double[] uppers)
+    {
+        if (lowers.length!=uppers.length)
+        {
+            throw new IllegalArgumentException("expected as many uppers as lowers");
+        }
+        double[] result= new double[lowers.length];
+        IntStream.range(0, lowers.length).parallel().forEach(x -> result[x]=solve(lowers[x], uppers[x]));
+        return result;
+    }
+
+    /**
+     * Finds a root of each function within the same bracket, in parallel, preparing each function's finder
+     * on the worker that solves it.
+     * @param functions the functions to solve, each of variable alone.
+     * @param variable the variable of the functions.
+     * @param lower one end of the bracket.
+     * @param upper the other end of the bracket.
+     * @return result[i] is new RootFinder(functions.get(i), variable).solve(lower, upper).
+     * @throws IllegalArgumentException if variable is not a variable or a function has other variables.
+     */
+    public static double[] solveAll(List<Expression> functions,Expression variable,double lower,double upper)
+    {
+        double[] result= new double[functions.size()];
+        IntStream.range(0, result.length).parallel()
+                .forEach(x -> result[x]=new RootFinder(functions.get(x), variable).solve(lower, upper));
+        return result;
+    }
+
+    /**
+     * Finds a root of each function from the same guess, in parallel, preparing each function's finder on
+     * the worker that solves it.
+     * @param functions the functions to solve, each of variable alone.
+     * @param variable the variable of the functions.
+     * @param guess the starting point.
+     * @return result[i] is new RootFinder(functions.get(i), variable).solve(guess).
+     * @throws IllegalArgumentException if variable is not a variable or a function has other variables.
+     */
+    public static double[] solveAll(List<Expression> functions,Expression variable,double guess)
+    {
+        double[] result= new double[functions.size()];
+        IntStream.range(0, result.length).parallel()
+                .forEach(x -> result[x]=new RootFinder(functions.get(x), variable).solve(guess));
+        return result;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "roots of "+function+" in "+variable;
+    }
+
+    // Safeguarded Newton within the bracket (a, b), where f(a)=fa and f(b)=fb have opposite signs and
+    // neither is 0, starting from the end closer to a root; iteration evaluations have been made already.
+    private double bracketed(double a,double fa,double b,double fb,int iteration,double[] point,
+            double[] workspace)
+    {
+        // low is the end where the function is negative, high where it is positive.
+        double low=fa<0 ? a : b;
+        double high=fa<0 ? b : a;
+        boolean fromA=Math.abs(fa)<Math.abs(fb);
+        double x=fromA ? a : b;
+        double fx=fromA ? fa : fb;
+        double step=Math.abs(high-low);
+        double lastStep=step;
+        for (;iteration<maxIterations;iteration++)
+        {
+            double next=x-fx/evaluate(slope, x, point, workspace);
+            double shorter=lastStep;
+            lastStep=step;
+            // Bisect when Newton leaves the bracket (or breaks down) or doesn't halve the step before last.
+            if (!(next>Math.min(low, high) && next<Math.max(low, high)) || Math.abs(next-x)>0.5*shorter)
+            {
+                next=0.5*(low+high);
+            }
+            step=Math.abs(next-x);
+            if (step<=tolerance*(1+Math.abs(next)))
+            {
+                return next;
+            }
+            x=next;
+            fx=evaluate(value, x, point, workspace);
+            if (fx==0)
+            {
+                return x;
+            }
+            if (fx<0)
+            {
+                low=x;
+            }
+            else
+            {
+                high=x;
+            }
+        }
+        return Double.NaN;
+    }
+
+    private static double evaluate(CompiledExpression program,double x,double[] point,double[] workspace)
+    {
+        point[0]=x;
+        return program.evaluate(point, workspace);
+    }
+}
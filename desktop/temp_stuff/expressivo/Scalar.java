@@ -11,16 +11,25 @@ import java.util.Map;
 public class Scalar implements Expression
 {
     //Abstract Function
-    // Maps a scalar to a scalar expression.
+    // Maps a scalar to a scalar expression. If exact is set, the value is exact and scalar is the closest
+    // double to it; otherwise the value is scalar itself. Either way, scalar is what toString prints and
+    // parse reads back, so it is what equals and hashCode compare.
     //Representation Invariant
-    // scalar must be non-negative.
+    // scalar must be non-negative. If exact is set, scalar==exact.doubleValue().
     //Safety from Rep Exposure
     // The field scalar is immutable and initiated as final. The observer getElements creates a new 
-    // List to return in order to avoid rep exposure.
+    // List to return in order to avoid rep exposure. Rationals are immutable.
+    //Thread Safety
+    // value and fingerprint are beneficent mutations computed from the immutable fields; the volatile
+    // writes publish them safely.
     private final double scalar;
+    private final Rational exact;
+    private volatile Rational value;
+    private volatile Fingerprint fingerprint;
     
     private void checkRep(){
         assert scalar>=0;
+        assert exact==null || scalar==exact.doubleValue();
     }
     /**
      * @param scalar Takes in a non-negative double that represents a scalar in the expression.
@@ -28,13 +37,31 @@ public class Scalar implements Expression
     public Scalar(double scalar)
     {
         this.scalar=scalar;
+        this.exact=null;
+        checkRep();
+    }
+    /**
+     * @param exact a non-negative rational, kept exactly.
+     */
+    public Scalar(Rational exact)
+    {
+        this.scalar=exact.doubleValue();
+        this.exact=exact;
+        this.value=exact;
         checkRep();
     }
 
+    /**
+     * @return the value as a double; an exact value that is a terminating decimal is written out exactly
+     *         instead, so that parseExact reads it back with the same exact value. Either way parse reads
+     *         it back as scalar, the closest double, so the result is equal to this.
+     */
     @Override 
     public String toString(){
         checkRep();
-        return Double.toString(scalar);
+        String result=exact!=null && exact.isTerminatingDecimal() ? exact.toDecimalString() : Double.toString(scalar);
+        assert Double.parseDouble(result)==scalar : "scalar does not round-trip: "+result;
+        return result;
     }
     @Override
     public List<Expression> getElements(){
@@ -47,21 +74,76 @@ public class Scalar implements Expression
     @Override
     public boolean equals(Object thatObject)
     {
+        if (thatObject instanceof LazyDerivative) return this.equals(((LazyDerivative)thatObject).topLevel());
         if (!(thatObject instanceof Scalar)) return false;
 
         Scalar thatScalar=(Scalar)thatObject;
         checkRep();
+        // Exact scalars compare by their closest double too: parse reads any printed scalar back as a
+        // double, so two exact values that round to the same double must both equal it, and so each other.
         return scalar==thatScalar.scalar;
  
     }
+    /**
+     * @return a hash of the value as a double, which is what equals compares, exact or not.
+     */
     @Override
     public int hashCode()
     {
         return Double.valueOf(scalar).hashCode();
     }  
+    /**
+     * @return the exact value if this scalar was made exact, or null if it is a double.
+     */
+    Rational getExact()
+    {
+        return exact;
+    }
+    /**
+     * @param expression any expression.
+     * @return true if expression is a scalar made exact.
+     */
+    static boolean isExact(Expression expression)
+    {
+        return expression instanceof Scalar && ((Scalar)expression).exact!=null;
+    }
+    /**
+     * @param constant a constant expression.
+     * @return its exact value, or null if it has none (infinity).
+     */
+    static Rational exactValue(Expression constant)
+    {
+        if (constant instanceof Scalar)
+        {
+            return ((Scalar)constant).value();
+        }
+        double value=constant.getConstant();
+        return Double.isInfinite(value) ? null : Rational.valueOf(value);
+    }
+    /**
+     * @return the exact value of this scalar: exact if it is set, else the exact value of the double
+     *         (null for infinity, which has none).
+     */
+    Rational value()
+    {
+        Rational result=value;
+        if (result==null && !Double.isInfinite(scalar))
+        {
+            result=Rational.valueOf(scalar);
+            value=result;
+        }
+        return result;
+    }
     @Override
     public Expression differentiate(Expression withRespectTo)
     {
+        return differentiate(withRespectTo, Budget.unlimited());
+    }
+    @Override
+    public Expression differentiate(Expression withRespectTo,Budget budget)
+    {
+        budget.step();
+        budget.allocate(1);
         Expression expression=Expression.makeScalar(0);
         checkRep();
         return expression;
@@ -69,6 +151,12 @@ public class Scalar implements Expression
     @Override
     public Expression simplify(Map<String,Double> environment)
     {
+        return simplify(environment, Budget.unlimited());
+    }
+    @Override
+    public Expression simplify(Map<String,Double> environment,Budget budget)
+    {
+        budget.step();
         checkRep();
         return this;
     }
@@ -82,5 +170,15 @@ public class Scalar implements Expression
         checkRep();
         return scalar;
     }
+    @Override
+    public Fingerprint fingerprint(){
+        Fingerprint result=fingerprint;
+        if (result==null)
+        {
+            // Equal scalars must have equal fingerprints, and scalars are equal when their doubles are.
+            result=Fingerprint.ofScalar(Double.doubleToLongBits(scalar));
+            fingerprint=result;
+        }
+        return result;
+    }
 }
-
@@ -0,0 +1,145 @@
+package expressivo;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A place to keep expressions between commands. Where Commands takes and returns strings, so that every
+ * chained command prints the whole expression and parses it back, a Session keeps the Expressions
+ * themselves behind opaque handles and only turns one into text when render is called.
+ */
+public class Session
+{
+    //Abstract Function
+    // Maps expressions to the set of live handles of this session, handle number n standing for
+    // expressions.get(n).
+    //Representation Invariant
+    // Every key of expressions is less than nextId.
+    //Safety from Rep Exposure
+    // expressions is private and never returned. Handles only carry their owner and number, and
+    // Expressions are immutable.
+    //Thread Safety
+    // Only keep, get, release and size touch the rep, and they are synchronized on this. parse,
+    // differentiate, simplify and render do their work outside the lock, taking it only to look up or
+    // record a handle, so a slow request doesn't hold up the others.
+
+    /**
+     * An opaque reference to an expression kept by a Session. Only valid with the session that made it,
+     * until it is released.
+     */
+    public static final class Handle
+    {
+        private final Session owner;
+        private final long id;
+
+        private Handle(Session owner,long id)
+        {
+            this.owner=owner;
+            this.id=id;
+        }
+        @Override
+        public String toString()
+        {
+            return "#"+id;
+        }
+    }
+
+    private final Map<Long,Expression> expressions= new HashMap<>();
+    private long nextId=0;
+
+    // Checks the invariant for the one entry that changed, so that keeping a handle stays O(1).
+    private void checkRep(long changed){
+        assert changed<nextId;
+    }
+
+    /**
+     * @param expression an expression, as defined for Expression.parse(String).
+     * @return a handle to the parsed expression.
+     * @throws IllegalArgumentException if the expression is invalid.
+     */
+    public Handle parse(String expression)
+    {
+        return keep(Expression.parse(expression));
+    }
+
+    /**
+     * @param expression any expression.
+     * @return a handle to it.
+     */
+    public synchronized Handle keep(Expression expression)
+    {
+        Handle handle= new Handle(this, nextId++);
+        expressions.put(handle.id, expression);
+        checkRep(handle.id);
+        return handle;
+    }
+
+    /**
+     * @param handle a live handle of this session.
+     * @return the expression it refers to.
+     * @throws IllegalArgumentException if handle is not a live handle of this session.
+     */
+    public synchronized Expression get(Handle handle)
+    {
+        Expression expression=handle.owner==this ? expressions.get(handle.id) : null;
+        if (expression==null)
+        {
+            throw new IllegalArgumentException("no such expression in this session: "+handle);
+        }
+        return expression;
+    }
+
+    /**
+     * Differentiate, as Commands.differentiate, without printing or parsing the expression.
+     * @param handle the expression to differentiate.
+     * @param variable the variable to differentiate by, a case-sensitive nonempty string of letters.
+     * @return a new handle to the derivative. handle stays valid.
+     * @throws IllegalArgumentException if handle is not live or variable is invalid.
+     */
+    public Handle differentiate(Handle handle,String variable)
+    {
+        return keep(get(handle).cachedDifferentiate(Expression.parse(variable)));
+    }
+
+    /**
+     * Simplify, as Commands.simplify, without printing or parsing the expression.
+     * @param handle the expression to simplify.
+     * @param environment maps variables to values.
+     * @return a new handle to the simplified expression. handle stays valid.
+     * @throws IllegalArgumentException if handle is not live.
+     */
+    public Handle simplify(Handle handle,Map<String,Double> environment)
+    {
+        return keep(get(handle).cachedSimplify(environment));
+    }
+
+    /**
+     * @param handle a live handle.
+     * @return the text of its expression, as Expression.toString.
+     * @throws IllegalArgumentException if handle is not live.
+     */
+    public String render(Handle handle)
+    {
+        return get(handle).toString();
+    }
+
+    /**
+     * Forgets an expression, so that it can be garbage collected. Releasing a handle twice does nothing.
+     * @param handle a handle of this session.
+     */
+    public synchronized void release(Handle handle)
+    {
+        if (handle.owner==this)
+        {
+            expressions.remove(handle.id);
+        }
+    }
+
+    /**
+     * @return the number of live handles.
+     */
+    public synchronized int size()
+    {
+        return expressions.size();
+    }
+}
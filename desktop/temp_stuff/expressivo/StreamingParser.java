@@ -0,0 +1,278 @@
+package expressivo;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A parser for the language of Expression.g4 that reads its input incrementally through a fixed-size
+ * buffer and builds the Expression as it goes, instead of holding the whole input in memory. Apart from
+ * the buffer, the memory used is the Expression being built plus one pending operator per unclosed
+ * operation, so inputs far larger than the heap can be parsed as long as the result fits.
+ *
+ * <p>Operators are resolved with the shunting-yard algorithm (no recursion), so deeply nested parentheses
+ * are fine. * binds tighter than +, and chains of the same operator group to the right (a+b+c is
+ * a+(b+c)) just like the listener of Expression.parse(String) builds them, so both parsers return
+ * structurally equal results.
+ */
+class StreamingParser
+{
+    //Abstract Function
+    // Maps (input, buffer[position..limit), offset) to the remaining text to parse: the unread chars in
+    // buffer followed by what is still in input. offset is the number of chars consumed so far.
+    //Representation Invariant
+    // 0 <= position <= limit <= buffer.length
+    //Safety from Rep Exposure
+    // Nothing is returned but new Expressions.
+    //Thread Safety
+    // Not thread safe; every parse uses its own StreamingParser.
+    private static final int BUFFER_SIZE=8192;
+    private static final char END='\0';
+
+    private final Reader input;
+    private final char[] buffer= new char[BUFFER_SIZE];
+    private int position=0;
+    private int limit=0;
+    private long offset=0;
+    private boolean exhausted=false;
+
+    private final List<Expression> operands= new ArrayList<>();
+    private final StringBuilder operators= new StringBuilder();
+
+    private void checkRep(){
+        assert 0<=position && position<=limit && limit<=buffer.length;
+    }
+
+    private StreamingParser(Reader input)
+    {
+        this.input=input;
+    }
+
+    /**
+     * @param input the text of an expression, as defined for Expression.parse(String). It is read up to
+     *        its end but not closed.
+     * @return the expression.
+     * @throws IOException if input can't be read.
+     * @throws IllegalArgumentException if the text is not a valid expression.
+     */
+    static Expression parse(Reader input) throws IOException
+    {
+        return new StreamingParser(input).parse();
+    }
+
+    private Expression parse() throws IOException
+    {
+        boolean expectOperand=true;
+        while (true)
+        {
+            skipSpaces();
+            char c=peek(0);
+            if (expectOperand)
+            {
+                if (c=='(')
+                {
+                    next();
+                    operators.append('(');
+                }
+                else if (isLetter(c))
+                {
+                    operands.add(Expression.makeVariable(readLetters()));
+                    expectOperand=false;
+                }
+                else if (isDigit(c) || (c=='.' && isDigit(peek(1))))
+                {
+                    operands.add(Expression.makeScalar(Double.valueOf(readNumber())));
+                    expectOperand=false;
+                }
+                else
+                {
+                    throw error(c);
+                }
+            }
+            else if (c=='+' || c=='*')
+            {
+                next();
+                while (operators.length()>0 && precedence(operators.charAt(operators.length()-1))>precedence(c))
+                {
+                    reduce();
+                }
+                operators.append(c);
+                expectOperand=true;
+            }
+            else if (c==')')
+            {
+                next();
+                while (operators.length()>0 && operators.charAt(operators.length()-1)!='(')
+                {
+                    reduce();
+                }
+                if (operators.length()==0)
+                {
+                    throw error(c);
+                }
+                operators.setLength(operators.length()-1);
+            }
+            else if (c==END && atEnd())
+            {
+                while (operators.length()>0 && operators.charAt(operators.length()-1)!='(')
+                {
+                    reduce();
+                }
+                if (operators.length()>0)
+                {
+                    throw new IllegalArgumentException("unclosed parenthesis at end of input");
+                }
+                checkRep();
+                return operands.get(0);
+            }
+            else
+            {
+                throw error(c);
+            }
+        }
+    }
+
+    // Replaces the top two operands by the top operator applied to them.
+    private void reduce()
+    {
+        char operator=operators.charAt(operators.length()-1);
+        operators.setLength(operators.length()-1);
+        Expression expression2=operands.remove(operands.size()-1);
+        Expression expression1=operands.remove(operands.size()-1);
+        operands.add(operator=='+' ? Expression.makeSum(expression1, expression2)
+                : Expression.makeProduct(expression1, expression2));
+    }
+
+    private static int precedence(char operator)
+    {
+        switch (operator)
+        {
+            case '*': return 2;
+            case '+': return 1;
+            default: return 0; // '(' is never reduced by an operator
+        }
+    }
+
+    private String readLetters() throws IOException
+    {
+        StringBuilder result= new StringBuilder();
+        while (isLetter(peek(0)))
+        {
+            result.append(next());
+        }
+        return result.toString();
+    }
+
+    // NUMBER : ( [0-9]+ ('.' [0-9]+)? ) | ('.' [0-9]+) ('E' '-'? [0-9]+)?
+    private String readNumber() throws IOException
+    {
+        StringBuilder result= new StringBuilder();
+        if (isDigit(peek(0)))
+        {
+            while (isDigit(peek(0)))
+            {
+                result.append(next());
+            }
+            if (peek(0)=='.' && isDigit(peek(1)))
+            {
+                result.append(next());
+                while (isDigit(peek(0)))
+                {
+                    result.append(next());
+                }
+            }
+            return result.toString();
+        }
+        result.append(next());
+        while (isDigit(peek(0)))
+        {
+            result.append(next());
+        }
+        if (peek(0)=='E' && (isDigit(peek(1)) || (peek(1)=='-' && isDigit(peek(2)))))
+        {
+            result.append(next());
+            if (peek(0)=='-')
+            {
+                result.append(next());
+            }
+            while (isDigit(peek(0)))
+            {
+                result.append(next());
+            }
+        }
+        return result.toString();
+    }
+
+    private void skipSpaces() throws IOException
+    {
+        while (peek(0)==' ')
+        {
+            next();
+        }
+    }
+
+    private IllegalArgumentException error(char c) throws IOException
+    {
+        if (c==END && atEnd())
+        {
+            return new IllegalArgumentException("unexpected end of input");
+        }
+        return new IllegalArgumentException("unexpected '"+c+"' at offset "+offset);
+    }
+
+    private static boolean isLetter(char c)
+    {
+        return (c>='a' && c<='z') || (c>='A' && c<='Z');
+    }
+    private static boolean isDigit(char c)
+    {
+        return c>='0' && c<='9';
+    }
+
+    private boolean atEnd() throws IOException
+    {
+        return !fill(1);
+    }
+
+    // The char ahead chars after the current one, or END past the end of the input.
+    private char peek(int ahead) throws IOException
+    {
+        if (!fill(ahead+1))
+        {
+            return END;
+        }
+        return buffer[position+ahead];
+    }
+
+    private char next() throws IOException
+    {
+        fill(1);
+        offset++;
+        return buffer[position++];
+    }
+
+    // Makes at least count chars available in the buffer if the input has that many left.
+    private boolean fill(int count) throws IOException
+    {
+        while (limit-position<count && !exhausted)
+        {
+            if (position>0)
+            {
+                System.arraycopy(buffer, position, buffer, 0, limit-position);
+                limit-=position;
+                position=0;
+            }
+            int read=input.read(buffer, limit, buffer.length-limit);
+            if (read<0)
+            {
+                exhausted=true;
+            }
+            else
+            {
+                limit+=read;
+            }
+        }
+        return limit-position>=count;
+    }
+}
@@ -1,7 +1,6 @@
 package expressivo;
 
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.regex.Matcher;
@@ -18,6 +17,7 @@ class Variable implements Expression
     //Safety from Rep Exposure
     //The getList method returns a defensive copying of list in rep, and String is a final variable.
     private final String variable;
+    private volatile Fingerprint fingerprint;
     /**
      * 
      * @param string takes in a non-empty string with no whitespace in the body and consisting of lower or upper case characters.  
@@ -50,6 +50,7 @@ class Variable implements Expression
     @Override
     public boolean equals(Object thatObject)
     {
+        if (thatObject instanceof LazyDerivative) return this.equals(((LazyDerivative)thatObject).topLevel());
         if (!(thatObject instanceof Variable)) return false;
 
         Variable thatVariable= (Variable)thatObject;
@@ -66,6 +67,13 @@ class Variable implements Expression
     @Override
     public Expression differentiate(Expression withRespectTo)
     {
+        return differentiate(withRespectTo, Budget.unlimited());
+    }
+    @Override
+    public Expression differentiate(Expression withRespectTo,Budget budget)
+    {
+        budget.step();
+        budget.allocate(1);
         if(withRespectTo.equals(this))
         {
             Expression expression=Expression.makeScalar(1); 
@@ -82,17 +90,18 @@ class Variable implements Expression
     @Override
     public Expression simplify(Map<String,Double> environment)
     {
-        Iterator<String> iterator=environment.keySet().iterator();
+        return simplify(environment, Budget.unlimited());
+    }
+    @Override
+    public Expression simplify(Map<String,Double> environment,Budget budget)
+    {
+        budget.step();
         Expression substitution=this;
-        while (iterator.hasNext())
+        Double value=environment.get(variable);
+        if (value!=null)
         {
-            String key=iterator.next();
-            Expression expression=Expression.makeVariable(key);
-            if (this.equals(expression))
-            {
-                substitution= Expression.makeScalar(environment.get(key));
-            }
-
+            budget.allocate(1);
+            substitution= Expression.makeScalar(value);
         }
         checkRep();
         return substitution;
@@ -106,5 +115,15 @@ class Variable implements Expression
     public double getConstant() throws IllegalArgumentException{
         throw new IllegalArgumentException();
     }
+    @Override
+    public Fingerprint fingerprint(){
+        Fingerprint result=fingerprint;
+        if (result==null)
+        {
+            result=Fingerprint.ofVariable(variable);
+            fingerprint=result;
+        }
+        checkRep();
+        return result;
+    }
 }
-
@@ -5,10 +5,10 @@ package minesweeper;
 
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Scanner;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Board represents a minesweeper board such that each entry in the minesweeper is either empty,
@@ -16,35 +16,80 @@ import java.util.Scanner;
  */
 public class Board {
     //Representation aka fields
-    private final List<List<Tile>> board;
+    private static final byte BOMB=1;
+    private static final byte DUG=2;
+    private static final byte FLAGGED=4;
+    private static final byte TOUCHED=8;
+    private static final int COUNT_SHIFT=4;
+    private static final int LOG_CAPACITY=1<<16;
+
+    private final int xDim;
+    private final int yDim;
+    private final byte[] cells;
+    private final ReentrantLock lock= new ReentrantLock();
+    private final int rowLength;
+    private final boolean[] dirty;
+    private final int[] dirtyRows;
+    private int dirtyCount;
+    private long version=0;
+    private final byte[][] rows;
+    private String renderedString;
+    private long stringVersion=-1;
+    private final int[] logCells= new int[LOG_CAPACITY];
+    private final byte[] logSymbols= new byte[LOG_CAPACITY];
+    private final long[] logVersions= new long[LOG_CAPACITY];
+    private long logged=0;
+    private long logHorizon=0;
 
  
     //Abstraction function:
-    // Maps a multi-dimensional list (board) of type tile into a 2 dimensional minesweeper board.
+    // Maps cells, a row-major array of xDim*yDim cells, into a 2 dimensional minesweeper board whose tile
+    // (x,y) is cells[y*xDim+x]. Each cell packs the four states of a Tile into bits: BOMB, DUG, FLAGGED and
+    // TOUCHED. The upper four bits of the (unsigned) cell hold the number of bombs among its neighbors.
     //Representation invariant:
-    // board must have the size of a row and a column the same throughout the list.
+    // cells.length==xDim*yDim. Every cell satisfies the Tile invariant: a dug cell is touched, not flagged
+    // and has no bomb; a flagged cell is touched and not dug. The count of every cell equals the number of
+    // its up to 8 neighbors that have BOMB set.
+    // rows[y] is the text of row y as it was when it was last encoded, rowLength bytes followed by \r\n
+    // unless y is the last row. Every row that has changed since then is marked in dirty and listed once
+    // in dirtyRows[0..dirtyCount); the others are current. renderedString, if stringVersion>=0, is the text
+    // at stringVersion. version counts the changes to the board.
+    // The change log holds the last min(logged, LOG_CAPACITY) of the logged cell changes, oldest first, in a
+    // ring: change number i (counting from 0) is (logCells, logSymbols, logVersions)[i%LOG_CAPACITY], the
+    // cell, its new symbol and the version that made the change. Versions in the log never decrease, and
+    // every change made by a version after logHorizon is still in the log.
     //Representation Exposure:
-    // The nested list board has a final reference and made up of immutable type Tile. Mutators create
-    // new instances of Tile everytime they mutate board. Observers only return primitive types.
+    // cells and lock are private final and never returned. Observers only return primitive types, immutable
+    // Strings, and read-only views of row arrays that are never written again once encoded: a row that
+    // changes is encoded into a new array.
     //Thread Safety
-    // All mutators and observors are synchronized on the object board. Hence, no concurrency on the rep.
-    // The rep relies on an immutable type Tile.
-    // Further since all the synchronized blocks rely on one key there doesn't exist a cycle of dependencies.
+    // All mutators and observors hold the private ReentrantLock lock. Hence, no concurrency on the rep.
+    // getX and getY only read the final dimensions. Since lock is private, clients locking on their own
+    // (as the server does) never contend with or deadlock against its internal locking. A ReentrantLock
+    // rather than a monitor lets a virtual thread waiting for the board unmount from its carrier thread.
+    // Further since all the locked blocks rely on one key there doesn't exist a cycle of dependencies.
     // There are no static fields nor static methods that utilize the rep and hence no monitor pattern applied
     // to static methods.
     private void checkRep()
     {
-        int xDim=0;
-        for(int y=0;y<board.size();y++){
-            if(y!=0)
-            {
-                assert xDim==board.get(y).size();
-            }
-            else{
-                xDim=board.get(y).size();
-            }
+        assert cells.length==xDim*yDim;
+        assert dirty.length==yDim && dirtyCount<=yDim;
+        assert rows.length==yDim && stringVersion<=version;
+        assert logHorizon<=version;
+    }
+    // Checks the tile invariant of one cell; cheap enough to run after every update.
+    private void checkCell(int index)
+    {
+        int cell=cells[index];
+        assert countOf(index)<=8;
+        if ((cell&DUG)!=0)
+        {
+            assert (cell&(TOUCHED|FLAGGED|BOMB))==TOUCHED;
+        }
+        if ((cell&FLAGGED)!=0)
+        {
+            assert (cell&TOUCHED)!=0;
         }
-        
     }
     /**
      * Constructor with no existing file.
@@ -62,37 +107,22 @@ public class Board {
      */
     public Board(int x,int y)
     {
-        boolean notDug=false;
-        boolean notFlagged=false;
-        boolean notTouched=false;
-        boolean hasBomb=true;
-        boolean noBomb=false;
         double probability=0.25;
-        List<List<Tile>> randomBoard= new ArrayList<List<Tile>>();
-        List<Tile> partialBoard= new ArrayList<>();
-        for (int b=0;b<y;b++) //rows
+        this.xDim=x;
+        this.yDim=y;
+        this.cells= new byte[x*y]; // every cell starts not dug, not flagged, not touched
+        this.rowLength=Math.max(2*x-1, 0);
+        this.dirty= new boolean[y];
+        this.dirtyRows= new int[y];
+        for (int index=0;index<cells.length;index++)
         {
-            if (b>0)
+            if (Math.random()<=probability) //25% chance of producing a bomb for an element
             {
-                randomBoard.add(partialBoard);
-                partialBoard=new ArrayList<>();
+                cells[index]=BOMB;
             }
-            for (int a=0;a<x;a++) //columns
-            {
-                if (Math.random()<=probability) //25% chance of producing a bomb for an element
-                {
-                    Tile tile= new Tile(notDug,notFlagged,notTouched,hasBomb); // not dug, not flagged, not touched, has a bomb
-                    partialBoard.add(tile);
-                }
-                else{
-                    Tile tileNoBomb= new Tile(notDug,notFlagged,notTouched,noBomb);//not dug, not flagged,not touched,no bomb
-                    partialBoard.add(tileNoBomb);
-                }
-            }  
-            
         }
-        randomBoard.add(partialBoard);
-        this.board=Collections.synchronizedList(randomBoard);
+        countAllBombs();
+        this.rows=encodeAllRows();
         checkRep();
     }
     /**
@@ -103,97 +133,231 @@ public class Board {
      */
     public Board(File fileName) throws FileNotFoundException
     {
-        boolean notFlagged=false;
-        boolean notDug=false;
-        boolean notTouched=false;
-        boolean hasBomb=true;
-        boolean noBomb=false;
         RuntimeException error= new RuntimeException(); //If the file is incorrectly formatted
-        int xdim;
-        int ydim;
-        List<List<Tile>> board= new ArrayList<>();
-        List<Integer> preBoard= new ArrayList<>();
         Scanner scanner= new Scanner(fileName);
-        while (scanner.hasNextInt())
+        if (!scanner.hasNextInt())
         {
-            int entry=scanner.nextInt(); //throws an error if not matched to an integer.
-            preBoard.add(entry);
-        }
-        xdim=preBoard.get(0);
-        ydim=preBoard.get(1);
-        preBoard.remove(0); //Get rid of dimensions of the minesweeper board.
-        preBoard.remove(0);
-        if ((preBoard.size())!=xdim*ydim) //Incorrect formatting if the board isn't the dimensions expected.
+            throw new IndexOutOfBoundsException("no board dimensions");
+        }
+        int xdim=scanner.nextInt(); //throws an error if not matched to an integer.
+        if (!scanner.hasNextInt())
+        {
+            throw new IndexOutOfBoundsException("no board dimensions");
+        }
+        int ydim=scanner.nextInt();
+        if (xdim<0 || ydim<0)
         {
             throw error;
         }
-        List<Tile> row=new ArrayList<>();
-        for (int x=0;x<preBoard.size();x++){
-            if ((x)%xdim==0 && (x)/xdim>0){
-                board.add(row);
-                row=new ArrayList<>();
-            }
-            if( preBoard.get(x)==0){
-                Tile tile= new Tile(notDug,notFlagged,notTouched,noBomb);
-                row.add(tile);
-            }
-            if(preBoard.get(x)==1)
+        byte[] board= new byte[xdim*ydim];
+        int count=0;
+        while (scanner.hasNextInt())
+        {
+            int entry=scanner.nextInt();
+            if (count>=board.length) //Incorrect formatting if the board isn't the dimensions expected.
             {
-                Tile tile= new Tile(notDug,notFlagged,notTouched,hasBomb);
-                row.add(tile);
+                throw error;
             }
-            if (preBoard.get(x)!=0 && preBoard.get(x)!=1)
+            if (entry!=0 && entry!=1)
             {
                 throw error;
             }
+            board[count++]=entry==1 ? BOMB : 0;
         }
-        board.add(row);
-        this.board=Collections.synchronizedList(board);
-
+        if (count!=board.length)
+        {
+            throw error;
+        }
+        this.xDim=xdim;
+        this.yDim=ydim;
+        this.cells=board;
+        this.rowLength=Math.max(2*xdim-1, 0);
+        this.dirty= new boolean[ydim];
+        this.dirtyRows= new int[ydim];
+        countAllBombs();
+        this.rows=encodeAllRows();
+        checkRep();
     }
     
 
     
     @Override
     public String toString(){
-        synchronized(board){
-            String result="";
-            for (int y=0;y<this.board.size();y++)
+        lock.lock();
+        try{
+            if (stringVersion!=version)
             {
-                for (int x=0;x<this.board.get(0).size();x++)
+                refreshRows();
+                int length=0;
+                for (byte[] row: rows)
                 {
-                    if (!this.board.get(y).get(x).isTouched())
-                    {
-                        result=result+"- ";
-                    }
-                    if(this.board.get(y).get(x).isFlagged())
-                    {
-                        result=result+"F ";
-                    }
-                    if (this.board.get(y).get(x).isDug() && this.getNumber(x,y)==0)
-                    {
-                        result=result+"  ";
-                    }
-                    if(this.board.get(y).get(x).isDug() && this.getNumber(x,y)!=0){
-                        result=result+this.getNumber(x,y)+" ";
-                    }
-                    //Getting rid of the extra space at the end.
-                    if (x==this.board.get(0).size()-1)
-                    {
-                        result=result.substring(0, result.length()-1);
-                    }
+                    length+=row.length;
                 }
-              //Since println will be used in server (for consistency), no need for newline at the end.
-                if (y!=this.board.size()-1)
+                byte[] text= new byte[length];
+                int offset=0;
+                for (byte[] row: rows)
                 {
-                    result=result+"\r\n";
+                    System.arraycopy(row, 0, text, offset, row.length);
+                    offset+=row.length;
                 }
+                renderedString=new String(text, StandardCharsets.US_ASCII);
+                stringVersion=version;
             }
             checkRep();
-            return result; 
+            return renderedString; 
+        }
+        finally{
+            lock.unlock();
         }
         
     }
+    /**
+     * Renders the board as toString() does, as US-ASCII bytes kept per row, ready for a gathering write.
+     * The row bytes are shared: every client is handed views of the same arrays, a change only re-encodes
+     * the rows it touched, and rendering costs no copy of the board.
+     * @return one read-only buffer per row, positioned at its start, whose contents in order are the text of
+     *         toString(): each row but the last ends in \r\n.
+     */
+    public ByteBuffer[] render(){
+        lock.lock();
+        try{
+            refreshRows();
+            ByteBuffer[] result= new ByteBuffer[yDim];
+            for (int y=0;y<yDim;y++)
+            {
+                result[y]=ByteBuffer.wrap(rows[y]).asReadOnlyBuffer();
+            }
+            checkRep();
+            return result;
+        }
+        finally{
+            lock.unlock();
+        }
+    }
+    /**
+     * Gets the version of the board, which changes every time a dig, flag or deflag changes the board.
+     * @return a number that is the same for two calls exactly when the board didn't change between them.
+     */
+    public long getVersion(){
+        lock.lock();
+        try{
+            return version;
+        }
+        finally{
+            lock.unlock();
+        }
+    }
+    /**
+     * Describes what changed since a version the caller saw, as a delta if the change log still covers it
+     * and as the whole board otherwise.
+     * @param since a version returned by getVersion() or by an earlier lookSince.
+     * @return either "DELTA v n" followed by n lines "x y s", each the new symbol s of tile (x,y) to apply
+     *         in order, or "SNAPSHOT v" followed by the lines of toString(), where v is the current version.
+     *         Symbols are as in toString(), except that a dug tile with no neighboring bombs is 0. Lines
+     *         are separated by \r\n, with none at the end. A snapshot is sent when since is not a version
+     *         of this board, when the log no longer covers it, or when the delta would be the larger.
+     */
+    public String lookSince(long since){
+        lock.lock();
+        try{
+            // Walk back from the newest change to the first one after since.
+            long first=logged;
+            long oldest=Math.max(logged-LOG_CAPACITY, 0);
+            while (first>oldest && logVersions[(int)((first-1)%LOG_CAPACITY)]>since)
+            {
+                first--;
+            }
+            if (since<logHorizon || since>version || (logged-first)*4>(long)cells.length)
+            {
+                return "SNAPSHOT "+version+(yDim==0 ? "" : "\r\n"+this.toString());
+            }
+            StringBuilder result= new StringBuilder("DELTA "+version+" "+(logged-first));
+            for (long k=first;k<logged;k++)
+            {
+                int position=(int)(k%LOG_CAPACITY);
+                byte symbol=logSymbols[position];
+                result.append("\r\n").append(logCells[position]%xDim).append(' ').append(logCells[position]/xDim)
+                        .append(' ').append(symbol==' ' ? '0' : (char)symbol);
+            }
+            checkRep();
+            return result.toString();
+        }
+        finally{
+            lock.unlock();
+        }
+    }
+    //Re-encodes the rows that changed since they were last encoded, each into a new array since the old
+    //one may still be being written to a client. Callers hold lock.
+    private void refreshRows(){
+        for (int k=0;k<dirtyCount;k++)
+        {
+            rows[dirtyRows[k]]=encodeRow(dirtyRows[k]);
+            dirty[dirtyRows[k]]=false;
+        }
+        dirtyCount=0;
+    }
+    //Every row of a freshly built board, encoded.
+    private byte[][] encodeAllRows(){
+        byte[][] result= new byte[yDim][];
+        for (int y=0;y<yDim;y++)
+        {
+            result[y]=encodeRow(y);
+        }
+        return result;
+    }
+    //The text of row y, followed by \r\n unless it is the last row.
+    private byte[] encodeRow(int y){
+        byte[] row= new byte[y==yDim-1 ? rowLength : rowLength+2];
+        for (int x=0;x<xDim;x++)
+        {
+            row[2*x]=symbolOf(y*xDim+x);
+            //No extra space at the end.
+            if (x!=xDim-1)
+            {
+                row[2*x+1]=' ';
+            }
+        }
+        if (y!=yDim-1)
+        {
+            row[rowLength]='\r';
+            row[rowLength+1]='\n';
+        }
+        return row;
+    }
+    //The character that shows the cell at index in toString().
+    private byte symbolOf(int index){
+        int cell=cells[index];
+        if ((cell&TOUCHED)==0)
+        {
+            return '-';
+        }
+        if ((cell&FLAGGED)!=0)
+        {
+            return 'F';
+        }
+        int number=countOf(index);
+        return (byte)(number==0 ? ' ' : '0'+number);
+    }
+    //Notes that the symbol of the cell at index changed in the current version: marks its row dirty and
+    //logs the change. Callers hold lock.
+    private void changed(int index){
+        int y=index/xDim;
+        if (!dirty[y])
+        {
+            dirty[y]=true;
+            dirtyRows[dirtyCount++]=y;
+        }
+        int position=(int)(logged%LOG_CAPACITY);
+        if (logged>=LOG_CAPACITY)
+        {
+            // The change overwritten is the oldest; only versions from its own on are still complete.
+            logHorizon=Math.max(logHorizon, logVersions[position]);
+        }
+        logCells[position]=index;
+        logSymbols[position]=symbolOf(index);
+        logVersions[position]=version;
+        logged++;
+    }
     /**
      * Digs a tile for a bomb. Changes the state of the tile to dug. Boolean will indicate if their was a bomb where dug.
      * @param x represents the x coordinate of the tile that will be dug.
@@ -209,86 +373,103 @@ public class Board {
      * the state of this tile and its adjacent tiles to dug. Return false. (recursively).
      */
     public boolean dig(int x, int y){
-        boolean notFlagged=false;
-        boolean dug=true;
-        boolean touched=true;
-        boolean noBomb=false;
-        synchronized(board){
-            boolean wasThereBomb=false;
-            if (y>=0 && y<=this.board.size()-1 && x>=0 && x<=this.board.get(0).size()-1 && !this.board.get(y).get(x).isTouched())
+        lock.lock();
+        try{
+            if (!inRange(x,y) || (cells[y*xDim+x]&TOUCHED)!=0) //case 1
             {
-                //Notice that this code can be condensed, but I found it useful for dig to return
-                //boolean of the bomb state in to which it dug. This requires different if statements.
-                if(this.getNumber(x,y)!=0 && this.board.get(y).get(x).hasBomb()) //case 2.
-                {
-                    Tile tile= new Tile(dug,notFlagged,touched,noBomb);
-                    this.board.get(y).remove(x);
-                    this.board.get(y).add(x,tile);
-                    wasThereBomb=true;
-                    checkRep();
-                    return wasThereBomb;
-                }
-                if (this.getNumber(x,y)!=0 && !this.board.get(y).get(x).hasBomb())
-                {
-                    Tile tile= new Tile(dug,notFlagged,touched,noBomb);
-                    this.board.get(y).remove(x);
-                    this.board.get(y).add(x,tile);
-                    wasThereBomb=false;
-                    checkRep();
-                    return wasThereBomb;
-                }
-                if (this.getNumber(x,y)==0 && !this.board.get(y).get(x).hasBomb()) //case 4
-                {
-                    this.helperDig(x, y); //recursive helper method
-                    wasThereBomb=false;
-                    checkRep();
-                    return wasThereBomb;
-                }
-                // Notice that since bomb tiles are going to be cleared in the end, we might as well consider it as tile without bomb.
-                if (this.getNumber(x,y)==0 && this.board.get(y).get(x).hasBomb()) //case 4
+                checkRep();
+                return false;
+            }
+            int index=y*xDim+x;
+            boolean wasThereBomb=(cells[index]&BOMB)!=0;
+            version++;
+            // Since bomb tiles are cleared before digging, a tile with a bomb is dug like one without.
+            if (wasThereBomb)
+            {
+                cells[index]&=~BOMB;
+                addToNeighbors(x,y,-1);
+                // Dug neighbors show the new count.
+                for (int b=Math.max(y-1,0);b<=Math.min(y+1,yDim-1);b++)
                 {
-                    Tile pseudoTile= new Tile(false,false,false,false); //pretend that it had no bomb and untouched. This allows recursive function to run.
-                    this.board.get(y).remove(x);
-                    this.board.get(y).add(x, pseudoTile);
-                    
-                    this.helperDig(x, y); //recurisve helper method
-                    wasThereBomb=true;
-                    checkRep();
-                    return wasThereBomb;
+                    for (int a=Math.max(x-1,0);a<=Math.min(x+1,xDim-1);a++)
+                    {
+                        if ((cells[b*xDim+a]&DUG)!=0)
+                        {
+                            changed(b*xDim+a);
+                        }
+                    }
                 }
             }
-            else{ //case 1
-                checkRep();
-                return false;
+            if (countOf(index)!=0) //case 2 and 3
+            {
+                cells[index]|=DUG|TOUCHED;
+                checkCell(index);
+                changed(index);
+            }
+            else //case 4
+            {
+                this.helperDig(x, y); //flood fill helper method
             }
             checkRep();
             return wasThereBomb;
         }
+        finally{
+            lock.unlock();
+        }
     }
-    //Recursively digs when no neighbors have mines.
+    //Digs (x,y), which must be untouched with no bomb and no neighboring bombs, and every tile reachable
+    //from it through tiles with no neighboring bombs. Iterative, so large empty regions can't overflow the
+    //stack: the touched bit serves as the visited mark, so each tile is queued at most once, and the queue
+    //of dug tiles whose neighbors are still to be looked at is an int ring that only grows with the frontier.
     private void helperDig(int x, int y){
-            if (y>=0 && y<=this.board.size()-1 && x>=0 && x<=this.board.get(0).size()-1 && !this.board.get(y).get(x).isTouched())
+        int[] queue= new int[64];
+        int head=0;
+        int size=0;
+        int start=y*xDim+x;
+        cells[start]|=DUG|TOUCHED;
+        changed(start);
+        queue[size++]=start;
+        while (size>0)
+        {
+            int index=queue[head];
+            head=(head+1)&(queue.length-1);
+            size--;
+            if (countOf(index)!=0)
             {
-                if (!this.board.get(y).get(x).hasBomb())
-                {
-                    Tile tile= new Tile(true,false,true,false);
-                    this.board.get(y).remove(x);
-                    this.board.get(y).add(x,tile);
-                }
-                if (this.getNumber(x,y)==0)
+                continue;
+            }
+            int a=index%xDim;
+            int b=index/xDim;
+            for (int row=Math.max(b-1,0);row<=Math.min(b+1,yDim-1);row++)
+            {
+                for (int column=Math.max(a-1,0);column<=Math.min(a+1,xDim-1);column++)
                 {
-                    helperDig(x+1,y);
-                    helperDig(x+1,y-1);
-                    helperDig(x-1,y);
-                    helperDig(x-1,y+1);
-                    helperDig(x,y+1);
-                    helperDig(x,y-1);
-                    helperDig(x-1,y-1);
-                    helperDig(x+1,y+1);
+                    int neighbor=row*xDim+column;
+                    if ((cells[neighbor]&TOUCHED)==0)
+                    {
+                        // A neighbor of a tile with no neighboring bombs has no bomb.
+                        cells[neighbor]|=DUG|TOUCHED;
+                        checkCell(neighbor);
+                        changed(neighbor);
+                        if (size==queue.length)
+                        {
+                            queue=grow(queue,head);
+                            head=0;
+                        }
+                        queue[(head+size)&(queue.length-1)]=neighbor;
+                        size++;
+                    }
                 }
-
             }
-        
+        }
+    }
+    //A queue twice the size of the full ring queue, with its entries moved to the front in order.
+    private static int[] grow(int[] queue,int head)
+    {
+        int[] result= new int[2*queue.length];
+        System.arraycopy(queue, head, result, 0, queue.length-head);
+        System.arraycopy(queue, 0, result, queue.length-head, head);
+        return result;
     }
     /**
      * Flags a current tile for Bomb.
@@ -297,22 +478,19 @@ public class Board {
      * Effects: If x and y coordinates are legal in an untouched state then flag this coordinate, otherwise do nothing.
      */
     public void flag(int x, int y){
-        synchronized(board){
-            if (y>=0 && y<=this.board.size()-1 && x>=0 && x<=this.board.get(0).size()-1 && !this.board.get(y).get(x).isTouched())
+        lock.lock();
+        try{
+            if (inRange(x,y) && (cells[y*xDim+x]&TOUCHED)==0)
             {
-                if (this.board.get(y).get(x).hasBomb()){
-                    Tile tile= new Tile (false,true,true,true);
-                    this.board.get(y).remove(x);
-                    this.board.get(y).add(x,tile);
-                }
-                else{
-                    Tile tile= new Tile(false,true,true,false);
-                    this.board.get(y).remove(x);
-                    this.board.get(y).add(x,tile); 
-                }
-                
+                version++;
+                cells[y*xDim+x]|=FLAGGED|TOUCHED;
+                checkCell(y*xDim+x);
+                changed(y*xDim+x);
             } 
         }
+        finally{
+            lock.unlock();
+        }
         
     }
     /**
@@ -322,22 +500,19 @@ public class Board {
      * Effects: If x and y are legal and the tile is a flagged state, turn the tile to untouched state.
      */
     public void deflag(int x, int y){
-        synchronized(board){
-            if (y>=0 && y<=this.board.size()-1 && x>=0 && x<=this.board.get(0).size()-1 && this.board.get(y).get(x).isFlagged())
+        lock.lock();
+        try{
+            if (inRange(x,y) && (cells[y*xDim+x]&FLAGGED)!=0)
             {
-                if (this.board.get(y).get(x).hasBomb())
-                {
-                    Tile tile = new Tile(false,false,false,true);
-                    this.board.get(y).remove(x);
-                    this.board.get(y).add(x, tile);
-                }
-                else{
-                    Tile tile= new Tile(false,false,false,false);
-                    this.board.get(y).remove(x);
-                    this.board.get(y).add(x,tile);
-                }
+                version++;
+                cells[y*xDim+x]&=~(FLAGGED|TOUCHED);
+                checkCell(y*xDim+x);
+                changed(y*xDim+x);
             } 
         }
+        finally{
+            lock.unlock();
+        }
         
     }
     /**
@@ -345,47 +520,56 @@ public class Board {
      * @param x represents the x-coordinate of the tile. Must be valid x-coordinates.
      * @param y represents the y-coordinate of the tile. Must be valid y-coordinates.
      * @return an integer that represents the number of adjacent mines. The integer is between 0<=x<=8.
+     * @throws IndexOutOfBoundsException if x or y is not a valid coordinate.
      */
     public int getNumber(int x, int y){
-        synchronized(board){
-            int count=0;
-            if ((y+1)<=board.size()-1 && board.get(y+1).get(x).hasBomb())
-            {
-                count++;
-            }
-            if ((y+1)<=board.size()-1 && (x-1)>=0 && board.get(y+1).get(x-1).hasBomb())
-            {
-                count++;
-            }
-            
-            if ((y-1)>=0 && board.get(y-1).get(x).hasBomb())
-            {
-                count++;
-            }
-            if ((x+1)<=board.get(0).size()-1 && board.get(y).get(x+1).hasBomb())
-            {
-                count++;
-            }
-            if ((x+1)<=board.get(0).size()-1 && (y-1)>=0 && board.get(y-1).get(x+1).hasBomb())
+        lock.lock();
+        try{
+            if (!inRange(x,y))
             {
-                count++;
+                throw new IndexOutOfBoundsException("("+x+","+y+") is not on the board");
             }
-            if ((x-1)>=0 && board.get(y).get(x-1).hasBomb())
-            {
-                count++;
-            }
-            if ((x-1)>=0 && (y-1)>=0 && board.get(y-1).get(x-1).hasBomb())
+            return countOf(y*xDim+x); 
+        }
+        finally{
+            lock.unlock();
+        }
+        
+    }
+    //The neighbor bomb count of the cell at index.
+    private int countOf(int index)
+    {
+        return (cells[index]&0xff)>>>COUNT_SHIFT;
+    }
+    //Adds delta to the neighbor bomb count of every neighbor of (x,y). Callers hold lock or own the board.
+    private void addToNeighbors(int x,int y,int delta)
+    {
+        for (int b=Math.max(y-1,0);b<=Math.min(y+1,yDim-1);b++)
+        {
+            for (int a=Math.max(x-1,0);a<=Math.min(x+1,xDim-1);a++)
             {
-                count++;
+                if (a!=x || b!=y)
+                {
+                    int i=b*xDim+a;
+                    //Wraps around on purpose: countOf reads the count back unsigned.
+                    cells[i]=(byte)(cells[i]+(delta<<COUNT_SHIFT));
+                }
             }
-            if ((x+1)<=board.get(0).size()-1 && (y+1)<=board.size()-1 && board.get(y+1).get(x+1).hasBomb())
+        }
+    }
+    //Sets the neighbor bomb counts of a freshly built board, whose counts are all 0.
+    private void countAllBombs()
+    {
+        for (int y=0;y<yDim;y++)
+        {
+            for (int x=0;x<xDim;x++)
             {
-                count++;
+                if ((cells[y*xDim+x]&BOMB)!=0)
+                {
+                    addToNeighbors(x,y,1);
+                }
             }
-            checkRep();
-            return count; 
         }
-        
     }
     /** Checks if the tile is touched.
      * @param x represents the x-coordinate of the tile. Must be valid x-coordinates.
@@ -394,17 +578,7 @@ public class Board {
      * 
      */
     public boolean isTouched(int x,int y){
-        synchronized(board){
-            if (y>=0 && y<=this.board.size()-1 && x>=0 && x<=this.board.get(0).size()-1){
-                checkRep();
-                return (board.get(y).get(x).isTouched());
-            }
-            else{
-                checkRep();
-                return false;
-            }  
-        }
-        
+        return is(x,y,TOUCHED);
     }
     /** Checks if the tile is dug.
      * @param x represents the x-coordinate of the tile. Must be valid x-coordinates.
@@ -413,19 +587,7 @@ public class Board {
      */
     public boolean isDug(int x,int y)
     {
-        synchronized(board){
-            if (y>=0 && y<=this.board.size()-1 && x>=0 && x<=this.board.get(0).size()-1)
-            {
-                checkRep();
-                return this.board.get(y).get(x).isDug(); 
-            }
-            else{
-                checkRep();
-                return false;
-            }  
-        }
-        
-        
+        return is(x,y,DUG);
     }
     /** Checks if the tile has been flagged.
      * @param x represents the x-coordinate of the tile. Must be valid x-coordinates.
@@ -434,19 +596,7 @@ public class Board {
      */
     public boolean isFlagged(int x, int y)
     {
-        synchronized(board){
-            if (y>=0 && y<=this.board.size()-1 && x>=0 && x<=this.board.get(0).size()-1)
-            {
-                checkRep();
-                return this.board.get(y).get(x).isFlagged();  
-            }
-            else{
-                checkRep();
-                return false;
-            } 
-        }
-        
-        
+        return is(x,y,FLAGGED);
     }
     /**
      * Checks if the tile at x,y has a bomb
@@ -456,18 +606,7 @@ public class Board {
      */
     public boolean hasBomb(int x,int y)
     {
-        synchronized(board){
-            if (y>=0 && y<=this.board.size()-1 && x>=0 && x<=this.board.get(0).size()-1){
-                checkRep();
-                return this.board.get(y).get(x).hasBomb(); 
-            }
-            else{
-                checkRep();
-                return false;
-            }  
-        }
-        
-         
+        return is(x,y,BOMB);
     }
     /**
      * Gets the y dimension of the minesweeper board.
@@ -475,22 +614,29 @@ public class Board {
      */
     public int getY()
     {
-        synchronized (board)
-        {
-            return board.size();  
-        }
-        
+        return yDim;
     }
     /**
      * Gets the x dimension of the minesweeper board.
      * @return an int that represents the x Dimension.
      */
     public int getX(){
-        synchronized (board)
-        {
-            return board.get(0).size();  
+        return xDim;
+    }
+    //True if (x,y) is on the board and its cell has the state bit set, false otherwise.
+    private boolean is(int x,int y,byte bit)
+    {
+        lock.lock();
+        try{
+            return inRange(x,y) && (cells[y*xDim+x]&bit)!=0;
         }
-        
+        finally{
+            lock.unlock();
+        }
+    }
+    private boolean inRange(int x,int y)
+    {
+        return y>=0 && y<yDim && x>=0 && x<xDim;
     }
 
 }
\ No newline at end of file
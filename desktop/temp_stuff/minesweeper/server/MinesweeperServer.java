@@ -5,7 +5,13 @@ package minesweeper.server;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.Charset;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 import minesweeper.Board;
 
@@ -18,9 +24,11 @@ public class MinesweeperServer {
     //   Considering the system a whole, the server initializes one instance of Board and the thread safety of part of the 
     //   system depends on the thread safety of Board. Since board is a thread-safe type, the only thing left to consider are the methods
     //   that access non constant rep fields (systemBoard and numberOfUsers). numberOfUsers  only updates upon the connection or disconnection
-    //   of a client. This happens upon the creation of the thread. Hence, no concurrency issues. Finally, systemBoard field can only be 
-    //   modified in handlerequest which is synchronized with the object systemBoard as a lock. Hence, all handling of requests are atomic.
-    private static int numberOfUsers=0;
+    //   of a client, which may happen on many threads at once, so it is an AtomicInteger. Finally, systemBoard field can only be 
+    //   modified in handlerequest which holds boardLock. Hence, all handling of requests are atomic. boardLock is a ReentrantLock rather
+    //   than a monitor so that a virtual thread waiting for it doesn't pin its carrier thread. admission is a Semaphore, thread-safe.
+    private static final AtomicInteger numberOfUsers = new AtomicInteger();
+    private static final ReentrantLock boardLock = new ReentrantLock();
     private static  Board systemBoard;
     /** Default server port. */
     private static final int DEFAULT_PORT = 4444;
@@ -28,21 +36,38 @@ public class MinesweeperServer {
     private static final int MAXIMUM_PORT = 65535;
     /** Default square board size. */
     private static final int DEFAULT_SIZE = 10;
+    /** Initial size of a non-blocking connection's input buffer. */
+    private static final int READ_BUFFER_SIZE = 1024;
+    /** Longest request line a non-blocking connection accepts, in bytes. */
+    private static final int MAXIMUM_LINE = 1 << 16;
 
     /** Socket for receiving incoming connections. */
     private final ServerSocket serverSocket;
     /** True if the server should *not* disconnect a client after a BOOM message. */
     private final boolean debug;
+    /** One permit for every further client the server may admit. */
+    private final Semaphore admission;
+
+    /** How the server runs its client connections. */
+    public enum Mode {
+        /** A new platform thread per client. */
+        THREADS,
+        /** A virtual thread per client, or platform threads on a JVM without virtual threads. */
+        VIRTUAL_THREADS,
+        /** Every client on one selector thread, with non-blocking I/O. */
+        NON_BLOCKING
+    }
 
     //Abstraction function, rep invariant, rep exposure
     //Abstraction Function
     // Maps number of users and a systemBoard to a minesweeper game with specific number of players.
     //Representation invariant
     //number of users must be >=0. Since, the adding and removal happen per thread creation and destruction. It's 
-    // not possible to have <0 number of users. Check rep not needed.
+    // not possible to have <0 number of users. Nor more users than maxConnections, since each holds a permit of
+    // admission from acceptance to disconnection. Check rep not needed.
     //Rep exposure
     //No representation exposure since no method returns numberOfUsers nor systemBoard. Notice that numberOfUsers
-    // is immutable (primitive) and systemBoard is a mutable field, but its rep is never leaked (never returned) nor modified in this class.
+    // is a private AtomicInteger and systemBoard is a mutable field, but its rep is never leaked (never returned) nor modified in this class.
 
     /**
      * Make a MinesweeperServer that listens for connections on port.
@@ -52,8 +77,25 @@ public class MinesweeperServer {
      * @throws IOException if an error occurs opening the server socket
      */
     public MinesweeperServer(int port, boolean debug) throws IOException {
-        serverSocket = new ServerSocket(port);
+        this(port, debug, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Make a MinesweeperServer that listens for connections on port and serves at most maxConnections
+     * clients at once. Further clients wait in the listen backlog until a client disconnects.
+     * 
+     * @param port port number, requires 0 <= port <= 65535
+     * @param debug debug mode flag
+     * @param maxConnections most clients connected at once, requires maxConnections > 0
+     * @throws IOException if an error occurs opening the server socket
+     */
+    public MinesweeperServer(int port, boolean debug, int maxConnections) throws IOException {
+        // Opened through a channel so that serveNonBlocking() can use it with a selector.
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        channel.bind(new InetSocketAddress(port));
+        serverSocket = channel.socket();
         this.debug = debug;
+        this.admission = new Semaphore(maxConnections);
     }
 
     /**
@@ -64,13 +106,37 @@ public class MinesweeperServer {
      *                     (IOExceptions from individual clients do *not* terminate serve())
      */
     public void serve() throws IOException {
+        serve(task -> new Thread(task).start());
+    }
+
+    /**
+     * Run the server like serve(), but handle each client connection on a virtual thread, so that blocked
+     * clients cost little more than their buffers. On a JVM without virtual threads (before Java 21), fall
+     * back to a pool of platform threads. Never returns unless an exception is thrown.
+     * 
+     * @throws IOException if the main server socket is broken
+     *                     (IOExceptions from individual clients do *not* terminate serveOnVirtualThreads())
+     */
+    public void serveOnVirtualThreads() throws IOException {
+        serve(virtualThreadExecutor());
+    }
+
+    // Accepts clients as admission allows and handles each connection on executor.
+    private void serve(Executor executor) throws IOException {
 
         while (true) {
-            // block until a client connects
-            Socket socket = serverSocket.accept();
-            numberOfUsers++;
+            // wait for room for another client, then block until a client connects
+            admission.acquireUninterruptibly();
+            SocketChannel socket;
+            try {
+                socket = serverSocket.getChannel().accept();
+            } catch (IOException ioe) {
+                admission.release();
+                throw ioe;
+            }
+            numberOfUsers.incrementAndGet();
             System.out.println("connected with a client");
-            new Thread(new Runnable(){
+            executor.execute(new Runnable(){
                 public void run(){
                     try {
                         handleConnection(socket);
@@ -79,50 +145,261 @@ public class MinesweeperServer {
                     } finally {
                         try {
                             socket.close();
-                            numberOfUsers--;
-                            System.out.println("disconnected with a client");
                         } catch (IOException e) {
                             e.printStackTrace();
                         }
+                        numberOfUsers.decrementAndGet();
+                        admission.release();
+                        System.out.println("disconnected with a client");
                     }
                 }
-            }).start();    
+            });    
         }  
 
 
     }
 
+    // Executors.newVirtualThreadPerTaskExecutor() where the JVM has it; looked up reflectively so that the
+    // server still builds and runs on older JVMs, which get a cached pool of platform threads instead.
+    private static ExecutorService virtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.err.println("virtual threads are not available on this JVM, using platform threads");
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    /**
+     * Run the server on one thread, handling every client connection with non-blocking I/O multiplexed by a
+     * selector, so idle clients cost a buffer rather than a thread. Clients see the same protocol as with
+     * serve(). Never returns unless an exception is thrown.
+     * 
+     * @throws IOException if the main server socket or the selector is broken
+     *                     (IOExceptions from individual clients do *not* terminate serveNonBlocking())
+     */
+    public void serveNonBlocking() throws IOException {
+        ServerSocketChannel acceptor = serverSocket.getChannel();
+        acceptor.configureBlocking(false);
+        Selector selector = Selector.open();
+        SelectionKey accepting = acceptor.register(selector, SelectionKey.OP_ACCEPT);
+        while (true) {
+            selector.select();
+            Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+            while (selected.hasNext()) {
+                SelectionKey key = selected.next();
+                selected.remove();
+                if (key.isValid() && key.isAcceptable()) {
+                    if (!admission.tryAcquire()) {
+                        // full: stop accepting until a client disconnects
+                        accepting.interestOps(0);
+                        continue;
+                    }
+                    SocketChannel channel = acceptor.accept();
+                    if (channel == null) {
+                        admission.release();
+                    } else {
+                        channel.configureBlocking(false);
+                        Connection connection = new Connection(channel, accepting);
+                        connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                        numberOfUsers.incrementAndGet();
+                        System.out.println("connected with a client");
+                        connection.send("Welcome to Minesweeper. Board: "+systemBoard.getX()+" columns by "+systemBoard.getY()+" rows. Players: "+numberOfUsers.get()+" including you. Type 'help' for help.");
+                        handleReady(connection, false);
+                    }
+                } else if (key.attachment() != null) {
+                    handleReady((Connection) key.attachment(), true);
+                }
+            }
+        }
+    }
+
+    // Reads from (if ready and asked to) and writes to connection; a failure only drops that client.
+    private void handleReady(Connection connection, boolean read) {
+        try {
+            if (read && connection.key.isValid() && connection.key.isReadable()) {
+                connection.read();
+            }
+            if (connection.key.isValid()) {
+                connection.write();
+            }
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace(); // but don't terminate serveNonBlocking()
+            connection.close();
+        }
+    }
+
+    /**
+     * One client of serveNonBlocking(): its channel, the bytes read but not yet framed into lines, and the
+     * replies not yet written. Lines are framed and handled one at a time, and only while no reply is
+     * pending: once one is queued the connection stops framing and waits to write, and resumes with the
+     * buffered lines when the write drains. So a client that doesn't read its replies, or pipelines many
+     * requests, can't make the server queue more than one reply for it.
+     */
+    private class Connection {
+        private final SocketChannel channel;
+        private final SelectionKey accepting;
+        private final Charset charset = Charset.defaultCharset();
+        private final Deque<ByteBuffer> replies = new ArrayDeque<>();
+        // Ready to be read: input[position..limit) are the bytes not yet framed.
+        private ByteBuffer input = ByteBuffer.allocate(READ_BUFFER_SIZE).flip();
+        private SelectionKey key;
+        // True if the last line ended in \r, so that a \n right after it ends no line.
+        private boolean skipLineFeed = false;
+        // True once the client said bye or (outside debug mode) hit a bomb: no more requests are handled.
+        private boolean closing = false;
+        // True once the client has closed its end: what is buffered is all the input there will be.
+        private boolean endOfInput = false;
+        private boolean closed = false;
+
+        private Connection(SocketChannel channel, SelectionKey accepting) {
+            this.channel = channel;
+            this.accepting = accepting;
+        }
+
+        // Reads what is available and frames lines from it until one of them is answered.
+        private void read() throws IOException {
+            input.compact();
+            if (channel.read(input) < 0) {
+                endOfInput = true;
+            }
+            input.flip();
+            frame();
+            if (input.position() == 0 && input.limit() == input.capacity() && replies.isEmpty() && !closing) {
+                // the buffer holds part of a single line
+                if (input.capacity() >= MAXIMUM_LINE) {
+                    throw new IOException("request line longer than " + MAXIMUM_LINE + " bytes");
+                }
+                ByteBuffer larger = ByteBuffer.allocate(2 * input.capacity());
+                larger.put(input);
+                larger.flip();
+                input = larger;
+            }
+        }
+
+        // Handles buffered lines, as BufferedReader.readLine would frame them, until a reply is pending.
+        private void frame() {
+            int start = input.position();
+            for (int i = start; i < input.limit() && !closing && replies.isEmpty(); i++) {
+                byte b = input.get(i);
+                if (skipLineFeed) {
+                    skipLineFeed = false;
+                    if (b == '\n') {
+                        start = i + 1;
+                        continue;
+                    }
+                }
+                if (b == '\n' || b == '\r') {
+                    String line = new String(input.array(), start, i - start, charset);
+                    start = i + 1;
+                    skipLineFeed = b == '\r';
+                    handle(line);
+                }
+            }
+            if (endOfInput && start < input.limit() && !closing && replies.isEmpty()) {
+                // readLine returns an unterminated last line too
+                String line = new String(input.array(), start, input.limit() - start, charset);
+                start = input.limit();
+                handle(line);
+            }
+            input.position(closing ? input.limit() : start);
+        }
+
+        // Same decisions as handleConnection, with replies queued instead of printed.
+        private void handle(String line) {
+            Reply output = handleRequest(line);
+            if (output != null) {
+                if (output.is("bye")) {
+                    closing = true;
+                } else {
+                    replies.addAll(Arrays.asList(output.encode(charset)));
+                    if (output.is("BOOM!") && !debug) {
+                        closing = true;
+                    }
+                }
+            }
+        }
+
+        // Queues output as println would write it.
+        private void send(String output) {
+            replies.add(charset.encode(output + System.lineSeparator()));
+        }
+
+        // Writes as much of the pending replies as the channel takes, in gathering writes, and goes back to
+        // the buffered lines whenever they drain; then waits for whatever is next.
+        private void write() throws IOException {
+            while (true) {
+                while (!replies.isEmpty()) {
+                    long written = channel.write(replies.toArray(new ByteBuffer[replies.size()]));
+                    while (!replies.isEmpty() && !replies.peek().hasRemaining()) {
+                        replies.remove();
+                    }
+                    if (written == 0 && !replies.isEmpty()) {
+                        key.interestOps(SelectionKey.OP_WRITE);
+                        return;
+                    }
+                }
+                if (closing || !input.hasRemaining()) {
+                    break;
+                }
+                frame();
+                if (replies.isEmpty()) {
+                    break;
+                }
+            }
+            if (closing || endOfInput) {
+                close();
+            } else if (key.isValid()) {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        private void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            numberOfUsers.decrementAndGet();
+            admission.release();
+            if (accepting.isValid()) {
+                accepting.interestOps(SelectionKey.OP_ACCEPT);
+            }
+            System.out.println("disconnected with a client");
+        }
+    }
+
     /**
      * Handle a single client connection. Returns when client disconnects.
      * 
-     * @param socket socket where the client is connected
+     * @param socket blocking channel where the client is connected
      * @throws IOException if the connection encounters an error or terminates unexpectedly
      */
-    private void handleConnection(Socket socket) throws IOException {
+    private void handleConnection(SocketChannel socket) throws IOException {
 
-            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+            // The socket's own streams and channel writes wait on locks rather than monitors, so a
+            // virtual thread blocked on a slow client doesn't pin its carrier thread.
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.socket().getInputStream()));
 
             try {
-                out.println("Welcome to Minesweeper. Board: "+systemBoard.getX()+" columns by "+systemBoard.getY()+" rows. Players: "+numberOfUsers+" including you. Type 'help' for help.");
+                send(socket, Reply.message("Welcome to Minesweeper. Board: "+systemBoard.getX()+" columns by "+systemBoard.getY()+" rows. Players: "+numberOfUsers.get()+" including you. Type 'help' for help."));
                 for (String line = in.readLine(); line != null; line = in.readLine()) {
-                    String output = handleRequest(line);
+                    Reply output = handleRequest(line);
 
                     if (output != null) {
-                        if(output.equals("bye")){
+                        if(output.is("bye")){
                             socket.close();
                         }
                         else{
-                            if(output.equals("BOOM!") && debug){
-                                out.println(output);
-                            }
-                            if (output.equals("BOOM!") && !debug){
-                                out.println(output);
+                            send(socket, output);
+                            if (output.is("BOOM!") && !debug){
                                 socket.close();
                             }
-                            if (!output.equals("BOOM!")){
-                                out.println(output);
-                            }
 
                         }
 
@@ -130,37 +407,94 @@ public class MinesweeperServer {
                     }
                 }
             } finally {
-                out.close();
                 in.close();
             }
         
 
     }
 
+    // Writes reply to a blocking channel as println would, in gathering writes straight from its buffers.
+    private static void send(SocketChannel socket, Reply reply) throws IOException {
+        ByteBuffer[] buffers = reply.encode(Charset.defaultCharset());
+        while (buffers[buffers.length - 1].hasRemaining()) {
+            socket.write(buffers);
+        }
+    }
+
+    /**
+     * A reply to one request: a message, or the board as it was when the request was handled. A board
+     * reply holds views of the board's shared row bytes, so sending it to a client doesn't re-encode the
+     * board.
+     */
+    private static final class Reply {
+        private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(Charset.defaultCharset());
+
+        private final String message;
+        private final ByteBuffer[] board;
+
+        private Reply(String message, ByteBuffer[] board) {
+            this.message = message;
+            this.board = board;
+        }
+
+        private static Reply message(String message) {
+            return new Reply(message, null);
+        }
+
+        private static Reply board(ByteBuffer[] board) {
+            return new Reply(null, board);
+        }
+
+        // True if this is the message text.
+        private boolean is(String text) {
+            return message != null && message.equals(text);
+        }
+
+        // The bytes println would write for this reply, ready for a (gathering) write: the message encoded
+        // with charset, or the board's rows, then the line separator. The board is US-ASCII, which every
+        // charset a client could read the rest of the protocol in agrees with.
+        private ByteBuffer[] encode(Charset charset) {
+            if (message != null) {
+                return new ByteBuffer[] { charset.encode(message + System.lineSeparator()) };
+            }
+            ByteBuffer[] result = Arrays.copyOf(board, board.length + 1);
+            result[board.length] = ByteBuffer.wrap(LINE_SEPARATOR);
+            return result;
+        }
+    }
+
     /**
      * Handler for client input, performing requested operations and returning an output message.
      * 
      * @param input message from client
      * @return message to client, or null if none
      */
-    private String handleRequest(String input) {
-        synchronized (systemBoard){
-            String regex = "(look)|(help)|(bye)|"
+    private Reply handleRequest(String input) {
+        boardLock.lock();
+        try {
+            String regex = "(look)|(look-since -?\\d+)|(help)|(bye)|"
                     + "(dig -?\\d+ -?\\d+)|(flag -?\\d+ -?\\d+)|(deflag -?\\d+ -?\\d+)";
             if ( ! input.matches(regex)) {
                 System.out.println(input);
-                String help="Yo you need help?,use the command: help,look,bye,dig,flag,deflag\n";
-                return help;
+                String help="Yo you need help?,use the command: help,look,look-since,bye,dig,flag,deflag\n";
+                return Reply.message(help);
             }
             String[] tokens = input.split(" ");
             if (tokens[0].equals("look")) {
-                return systemBoard.toString();
+                return Reply.board(systemBoard.render());
+            } else if (tokens[0].equals("look-since")) {
+                // only what changed since the client's version, or the whole board if that's too old
+                try {
+                    return Reply.message(systemBoard.lookSince(Long.parseLong(tokens[1])));
+                } catch (NumberFormatException nfe) {
+                    return Reply.message(systemBoard.lookSince(-1));
+                }
             } else if (tokens[0].equals("help")) {
                 // 'help' request
-                String help="Yo you need help?,use the command: help,look,bye,dig,flag,deflag";
-                return help;
+                String help="Yo you need help?,use the command: help,look,look-since,bye,dig,flag,deflag";
+                return Reply.message(help);
             } else if (tokens[0].equals("bye")) {
-                return "bye";
+                return Reply.message("bye");
             } else {
                 int x = Integer.parseInt(tokens[1]);
                 int y = Integer.parseInt(tokens[2]);
@@ -169,28 +503,30 @@ public class MinesweeperServer {
                         if (systemBoard.hasBomb(x, y))
                         {
                             systemBoard.dig(x,y);
-                            return "BOOM!";
+                            return Reply.message("BOOM!");
                         }
                         else{
                             systemBoard.dig(x, y);
-                            return systemBoard.toString();
+                            return Reply.board(systemBoard.render());
                         }     
                     }
                     else{
-                        return systemBoard.toString();
+                        return Reply.board(systemBoard.render());
                     }
 
 
 
                 } else if (tokens[0].equals("flag")) {
                     systemBoard.flag(x, y);
-                    return systemBoard.toString();
+                    return Reply.board(systemBoard.render());
                 } else if (tokens[0].equals("deflag")) {
                     systemBoard.deflag(x, y);
-                    return systemBoard.toString();
+                    return Reply.board(systemBoard.render());
                 }
             }
             throw new UnsupportedOperationException();   
+        } finally {
+            boardLock.unlock();
         }
 
     }
@@ -199,13 +535,22 @@ public class MinesweeperServer {
      * Start a MinesweeperServer using the given arguments.
      * 
      * <br> Usage:
-     *      MinesweeperServer [--debug | --no-debug] [--port PORT] [--size SIZE_X,SIZE_Y | --file FILE]
+     *      MinesweeperServer [--debug | --no-debug] [--nio | --virtual-threads] [--max-connections MAX]
+     *                        [--port PORT] [--size SIZE_X,SIZE_Y | --file FILE]
      * 
      * <br> The --debug argument means the server should run in debug mode. The server should disconnect a
      *      client after a BOOM message if and only if the --debug flag was NOT given.
      *      Using --no-debug is the same as using no flag at all.
      * <br> E.g. "MinesweeperServer --debug" starts the server in debug mode.
      * 
+     * <br> The --nio argument means the server should serve every client from one thread with non-blocking
+     *      I/O instead of starting a thread per client. The --virtual-threads argument means the server should
+     *      start a virtual thread per client instead of a platform thread.
+     * 
+     * <br> MAX is an optional positive integer, the most clients the server serves at once. Further clients
+     *      wait to be accepted until another client disconnects.
+     * <br> E.g. "MinesweeperServer --virtual-threads --max-connections 100000".
+     * 
      * <br> PORT is an optional integer in the range 0 to 65535 inclusive, specifying the port the server
      *      should be listening on for incoming connections.
      * <br> E.g. "MinesweeperServer --port 1234" starts the server listening on port 1234.
@@ -240,8 +585,10 @@ public class MinesweeperServer {
      * @param args arguments as described
      */
     public static void main(String[] args) {
-        // Command-line argument parsing is provided. Do not change this method.
+        // Parses the command line as described above, then runs the server in the chosen mode.
         boolean debug = false;
+        MinesweeperServer.Mode mode = Mode.THREADS;
+        int maxConnections = Integer.MAX_VALUE;
         int port = DEFAULT_PORT;
         int sizeX = DEFAULT_SIZE;
         int sizeY = DEFAULT_SIZE;
@@ -256,6 +603,15 @@ public class MinesweeperServer {
                         debug = true;
                     } else if (flag.equals("--no-debug")) {
                         debug = false;
+                    } else if (flag.equals("--nio")) {
+                        mode = Mode.NON_BLOCKING;
+                    } else if (flag.equals("--virtual-threads")) {
+                        mode = Mode.VIRTUAL_THREADS;
+                    } else if (flag.equals("--max-connections")) {
+                        maxConnections = Integer.parseInt(arguments.remove());
+                        if (maxConnections <= 0) {
+                            throw new IllegalArgumentException("max connections " + maxConnections + " must be positive");
+                        }
                     } else if (flag.equals("--port")) {
                         port = Integer.parseInt(arguments.remove());
                         if (port < 0 || port > MAXIMUM_PORT) {
@@ -284,12 +640,12 @@ public class MinesweeperServer {
             }
         } catch (IllegalArgumentException iae) {
             System.err.println(iae.getMessage());
-            System.err.println("usage: MinesweeperServer [--debug | --no-debug] [--port PORT] [--size SIZE_X,SIZE_Y | --file FILE]");
+            System.err.println("usage: MinesweeperServer [--debug | --no-debug] [--nio | --virtual-threads] [--max-connections MAX] [--port PORT] [--size SIZE_X,SIZE_Y | --file FILE]");
             return;
         }
 
         try {
-            runMinesweeperServer(debug, file, sizeX, sizeY, port);
+            runMinesweeperServer(debug, file, sizeX, sizeY, port, mode, maxConnections);
         } catch (IOException ioe) {
             throw new RuntimeException(ioe);
         }
@@ -308,6 +664,23 @@ public class MinesweeperServer {
      * @throws IOException if a network error occurs
      */
     public static void runMinesweeperServer(boolean debug, Optional<File> file, int sizeX, int sizeY, int port) throws IOException {
+        runMinesweeperServer(debug, file, sizeX, sizeY, port, Mode.THREADS, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Start a MinesweeperServer as runMinesweeperServer(debug, file, sizeX, sizeY, port) does, running its
+     * client connections as mode says and serving at most maxConnections clients at once.
+     * 
+     * @param debug The server will disconnect a client after a BOOM message if and only if debug is false.
+     * @param file If file.isPresent(), start with a board loaded from the specified file.
+     * @param sizeX If (!file.isPresent()), start with a random board with width sizeX.
+     * @param sizeY If (!file.isPresent()), start with a random board with height sizeY.
+     * @param port The network port on which the server should listen.
+     * @param mode How to run client connections: serve(), serveOnVirtualThreads() or serveNonBlocking().
+     * @param maxConnections The most clients served at once, requires maxConnections > 0.
+     * @throws IOException if a network error occurs
+     */
+    public static void runMinesweeperServer(boolean debug, Optional<File> file, int sizeX, int sizeY, int port, Mode mode, int maxConnections) throws IOException {
         
         if (file.isPresent()){
             Board board= new Board(file.get());
@@ -324,8 +697,14 @@ public class MinesweeperServer {
                 systemBoard=board;
             }
         }
-        MinesweeperServer server = new MinesweeperServer(port, debug);
-        server.serve();
+        MinesweeperServer server = new MinesweeperServer(port, debug, maxConnections);
+        if (mode == Mode.NON_BLOCKING) {
+            server.serveNonBlocking();
+        } else if (mode == Mode.VIRTUAL_THREADS) {
+            server.serveOnVirtualThreads();
+        } else {
+            server.serve();
+        }
         
     }
     